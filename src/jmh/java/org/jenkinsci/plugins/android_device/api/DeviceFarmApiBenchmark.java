@@ -0,0 +1,67 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import com.corundumstudio.socketio.AckRequest;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.listener.DataListener;
+import hudson.util.NullStream;
+import org.jenkinsci.plugins.android_device.FailedToConnectApiServerException;
+import org.jenkinsci.plugins.android_device.RemoteDevice;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Reservation round trip, from connecting the api server to getting the device, against
+ * the embedded socket.io server the tests use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class DeviceFarmApiBenchmark {
+    private static final int PORT = 10167;
+
+    private SocketIOServer server;
+    private PrintStream logger;
+
+    @Setup
+    public void setUp() {
+        Configuration config = new Configuration();
+        config.setHostname("localhost");
+        config.setPort(PORT);
+
+        server = new SocketIOServer(config);
+        server.addEventListener(DeviceFarmApi.KEY_JEN_DEVICE, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient socketIOClient, String jenDevice, AckRequest ackRequest) throws Exception {
+                socketIOClient.sendEvent(DeviceFarmApi.KEY_SVC_DEVICE, "{\"ip\":\"10.20.30.40\",\"port\":\"5555\",\"tag\":\"BENCH\"}");
+            }
+        });
+        server.addEventListener(DeviceFarmApi.KEY_JEN_OUT, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient socketIOClient, String outData, AckRequest ackRequest) throws Exception {
+            }
+        });
+        server.start();
+        logger = new PrintStream(new NullStream());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public RemoteDevice reservation() throws FailedToConnectApiServerException, MalformedResponseException, TimeoutException, NoDeviceAvailableException, InterruptedException {
+        DeviceFarmApi api = new DeviceFarmApiImpl();
+        api.connectApiServer(logger, "http://localhost:" + PORT, "BENCH", "Bench#1", 5000);
+        try {
+            return api.waitApiResponse(logger, 10000, 5000);
+        } finally {
+            api.disconnect();
+        }
+    }
+}
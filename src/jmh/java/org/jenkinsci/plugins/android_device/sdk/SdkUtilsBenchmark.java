@@ -0,0 +1,49 @@
+package org.jenkinsci.plugins.android_device.sdk;
+
+import hudson.util.ArgumentListBuilder;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building tool command lines against an SDK with a few build-tools installed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class SdkUtilsBenchmark {
+
+    @Param({"ADB", "AAPT"})
+    public Tool tool;
+
+    private File sdkRoot;
+    private AndroidSdk sdk;
+
+    @Setup
+    public void setUp() throws IOException {
+        sdkRoot = File.createTempFile("android-sdk", "");
+        sdkRoot.delete();
+        for (String version : new String[]{"19.1.0", "20.0.0", "21.1.2"}) {
+            File buildTools = new File(sdkRoot, "build-tools" + File.separator + version);
+            buildTools.mkdirs();
+            new File(buildTools, "aapt").createNewFile();
+        }
+        new File(sdkRoot, "platform-tools").mkdirs();
+        sdk = new AndroidSdk(sdkRoot.getPath(), sdkRoot.getPath());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(sdkRoot);
+    }
+
+    @Benchmark
+    public ArgumentListBuilder getToolCommand() {
+        return SdkUtils.getToolCommand(sdk, true, tool, "-s 10.20.30.40:5555 shell getprop sys.boot_completed");
+    }
+}
@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import hudson.util.NullStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the CRLF filter on what it sees in practice: <tt>screencap -p</tt> output and logcat text,
+ * written in the chunk size the process pumps use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class ReplaceFilterOutputStreamBenchmark {
+    private static final int PAYLOAD_SIZE = 4 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    @Param({"png", "logcat"})
+    public String payload;
+
+    private byte[] data;
+
+    @Setup
+    public void setUp() throws IOException {
+        if ("png".equals(payload)) {
+            // compressed image data is close to random, with the occasional CRLF added by the pty
+            data = new byte[PAYLOAD_SIZE];
+            new Random(42).nextBytes(data);
+            for (int i = 0; i + 1 < data.length; i += 4096) {
+                data[i] = 0x0D;
+                data[i + 1] = 0x0A;
+            }
+        } else {
+            StringBuilder builder = new StringBuilder(PAYLOAD_SIZE);
+            int pid = 1000;
+            while (builder.length() < PAYLOAD_SIZE) {
+                builder.append("10-17 12:34:56.789 I/ActivityManager(")
+                        .append(pid++ % 30000)
+                        .append("): Start proc com.example.app for activity com.example.app/.MainActivity\r\n");
+            }
+            data = builder.toString().getBytes("UTF-8");
+        }
+    }
+
+    @Benchmark
+    public void stream() throws IOException {
+        OutputStream out = new ReplaceFilterOutputStream(new NullStream());
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            out.write(data, offset, Math.min(CHUNK_SIZE, data.length - offset));
+        }
+        out.flush();
+    }
+
+    @Benchmark
+    public void channel() throws IOException {
+        ReplaceFilterByteChannel channel = new ReplaceFilterByteChannel(Channels.newChannel(new NullStream()));
+        for (int offset = 0; offset < data.length; offset += CHUNK_SIZE) {
+            channel.write(ByteBuffer.wrap(data, offset, Math.min(CHUNK_SIZE, data.length - offset)));
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import hudson.EnvVars;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Utils#expandVariables} with environments the size of a busy agent's.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+public class UtilsBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int size;
+
+    private EnvVars envVars;
+    private Map<String, String> buildVars;
+
+    @Setup
+    public void setUp() {
+        envVars = new EnvVars();
+        buildVars = new HashMap<String, String>();
+        for (int i = 0; i < size; i++) {
+            envVars.put("ENV_" + i, "/opt/value/" + i);
+            if (i % 10 == 0) {
+                buildVars.put("BUILD_" + i, "value" + i);
+            }
+        }
+        envVars.put("ANDROID_HOME", "/opt/android-sdk");
+    }
+
+    @Benchmark
+    public String expandVariables() {
+        return Utils.expandVariables(envVars, buildVars, "${ANDROID_HOME}/platform-tools");
+    }
+}
@@ -2,21 +2,31 @@ package org.jenkinsci.plugins.android_device;
 
 import com.google.common.net.InetAddresses;
 import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.NullStream;
+import org.jenkinsci.plugins.android_device.adb.AdbCallables;
+import org.jenkinsci.plugins.android_device.adb.AdbException;
+import org.jenkinsci.plugins.android_device.adb.DeviceFile;
 import org.jenkinsci.plugins.android_device.sdk.AndroidSdk;
 import org.jenkinsci.plugins.android_device.sdk.SdkUtils;
 import org.jenkinsci.plugins.android_device.sdk.Tool;
+import org.jenkinsci.plugins.android_device.util.ReplaceFilterOutputStream;
 import org.jenkinsci.plugins.android_device.util.Utils;
 
 import java.io.*;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static org.jenkinsci.plugins.android_device.AndroidRemote.log;
 
@@ -24,9 +34,20 @@ import static org.jenkinsci.plugins.android_device.AndroidRemote.log;
  * Created by skyisle on 08/25/2014.
  */
 public class AndroidDeviceContext {
+    private static final Logger LOGGER = Logger.getLogger(AndroidDeviceContext.class.getName());
+    /**
+     * Set this system property to always fork the adb executable instead of talking to the adb server directly.
+     */
+    private static final boolean ADB_CLIENT_DISABLED = Boolean.getBoolean(AndroidDeviceContext.class.getName() + ".disableAdbClient");
     private static final int DEFAULT_COMMAND_TIMEOUT_MS = 15000;
     private static final int DEFAULT_SCREENSHOT_COMMAND_TIMEOUT_MS = 30000;
     public static final int KEY_POWER = 26;
+    /**
+     * Runs on the device and returns once booting completed.
+     */
+    private static final String BOOT_COMPLETED_SCRIPT = "while [ \"$(getprop sys.boot_completed)\" != \"1\" ]; do sleep 1; done; echo "
+            + AdbCallables.BOOT_COMPLETED;
+    private static final String PROBE_REPLY = "alive";
     private String ip;
     private int port;
 
@@ -35,6 +56,7 @@ public class AndroidDeviceContext {
     private AbstractBuild<?, ?> build;
     private BuildListener listener;
     private Launcher launcher;
+    private EnvVars buildEnvironment;
 
 
     public AndroidDeviceContext(AbstractBuild<?, ?> build_,
@@ -49,6 +71,11 @@ public class AndroidDeviceContext {
         InetAddresses.forString(ip);
         this.ip = ip;
         this.port = port;
+
+        if (build != null) {
+            // resolve on the build executor thread; commands may later be sent from setup pool threads
+            getBuildEnvironment();
+        }
     }
 
     public String ip() {
@@ -67,9 +94,19 @@ public class AndroidDeviceContext {
      * @throws InterruptedException
      */
     private Launcher.ProcStarter getProcStarter() throws IOException, InterruptedException {
-        final EnvVars buildEnvironment = build.getEnvironment(TaskListener.NULL);
-        sdk.setupEnvVars(buildEnvironment);
-        return launcher.launch().stdout(new NullStream()).stderr(logger()).envs(buildEnvironment);
+        return launcher.launch().stdout(new NullStream()).stderr(logger()).envs(getBuildEnvironment());
+    }
+
+    /**
+     * Resolves the build environment once, as there is no current computer on threads other than the build executor.
+     */
+    private synchronized EnvVars getBuildEnvironment() throws IOException, InterruptedException {
+        if (buildEnvironment == null) {
+            final EnvVars environment = build.getEnvironment(TaskListener.NULL);
+            sdk.setupEnvVars(environment);
+            buildEnvironment = environment;
+        }
+        return buildEnvironment;
     }
 
     private PrintStream logger() {
@@ -123,6 +160,41 @@ public class AndroidDeviceContext {
       sendCommandWithSerial("am start -n com.skplanet.unlock/.Unlock", 5000);
     }
 
+    /**
+     * Checks that adb still reaches the device by running a trivial shell command on it.
+     */
+    public boolean isResponsive(int timeout_in_ms) throws InterruptedException {
+        try {
+            String output = callAdb(AdbCallables.shell(serial(), "echo " + PROBE_REPLY, timeout_in_ms));
+            if (output == null) {
+                output = runAdb(String.format("-s %s shell echo %s", serial(), PROBE_REPLY), timeout_in_ms);
+            }
+            return output.contains(PROBE_REPLY);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, serial() + " is not responsive", e);
+            return false;
+        }
+    }
+
+    /**
+     * Runs the pre-flight probes on the device, all at once in a single shell.
+     * A device which does not answer within the timeout gets a report with every probe failed.
+     */
+    HealthReport preflight(int timeout_in_ms) throws InterruptedException {
+        try {
+            String output = callAdb(AdbCallables.shell(serial(), HealthReport.SCRIPT, timeout_in_ms));
+            if (output == null) {
+                ArgumentListBuilder command = getToolCommand(Tool.ADB, String.format("-s %s shell", serial()));
+                command.add(HealthReport.SCRIPT);
+                output = runAdb(command, timeout_in_ms);
+            }
+            return HealthReport.parse(output);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, serial() + " did not answer the pre-flight probes", e);
+            return HealthReport.parse("");
+        }
+    }
+
     public void powerOn() throws IOException, InterruptedException {
         sendKey(KEY_POWER);
     }
@@ -135,7 +207,12 @@ public class AndroidDeviceContext {
     public void connect(int timeout_in_millis)
             throws IOException, InterruptedException {
         String args = "connect " + serial();
-        sendCommand(args, timeout_in_millis);
+        String output = adb(args, timeout_in_millis);
+        log(logger(), output);
+        // adb answers an unreachable device like any other, which would otherwise only show once waiting for it times out
+        if (output.contains("unable to connect") || output.contains("failed to connect") || output.contains("cannot connect")) {
+            throw new IOException(Messages.ADB_CONNECT_FAILED(serial(), output.trim()));
+        }
     }
 
     public void disconnect()
@@ -155,59 +232,214 @@ public class AndroidDeviceContext {
         return getToolProcStarter(Tool.ADB, logcatArgs).stdout(logcatStream).stderr(new NullStream()).start();
     }
 
-    void screenshot(OutputStream logcatStream) throws IOException, InterruptedException {
-        screenshot(logcatStream, DEFAULT_SCREENSHOT_COMMAND_TIMEOUT_MS);
+    void screenshot(OutputStream screencapStream, int maxWidth) throws IOException, InterruptedException {
+        screenshot(screencapStream, maxWidth, DEFAULT_SCREENSHOT_COMMAND_TIMEOUT_MS);
     }
 
-    void screenshot(OutputStream logcatStream, int timeout) throws IOException, InterruptedException {
-        final String logcatArgs = String.format("-s %s shell screencap -p", serial());
-        getToolProcStarter(Tool.ADB, logcatArgs).stdout(logcatStream).stderr(new NullStream()).start().joinWithTimeout(timeout, TimeUnit.MILLISECONDS, listener);
+    /**
+     * Writes a PNG screenshot of the device to the stream, which is left open.
+     *
+     * @param maxWidth Width to scale the screenshot down to on the build node, or 0 to keep it as it is.
+     */
+    void screenshot(OutputStream screencapStream, int maxWidth, int timeout) throws IOException, InterruptedException {
+        if (callAdb(AdbCallables.screenshot(serial(), screencapStream, maxWidth, timeout)) != null) {
+            return;
+        }
+        // adb shell runs screencap in a pty, which turns LF into CRLF in the binary output
+        OutputStream replaceFilterStream = new ReplaceFilterOutputStream(screencapStream);
+        final String screencapArgs = String.format("-s %s shell screencap -p", serial());
+        getToolProcStarter(Tool.ADB, screencapArgs).stdout(replaceFilterStream).stderr(new NullStream()).start().joinWithTimeout(timeout, TimeUnit.MILLISECONDS, listener);
+        replaceFilterStream.flush();
     }
 
-    public void sendCommand(String command, int timeout) throws IOException, InterruptedException {
-        ArgumentListBuilder adbConnectCmd = getToolCommand(Tool.ADB, command);
+    /**
+     * Reads the package name of an APK on the build node with aapt.
+     *
+     * @return The package name, or <code>null</code> if aapt could not tell.
+     */
+    public String getPackageName(FilePath apk) throws IOException, InterruptedException {
+        ArgumentListBuilder command = getToolCommand(Tool.AAPT, "dump badging");
+        command.add(apk.getRemote());
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        getProcStarter(adbConnectCmd).stdout(outputStream).start().joinWithTimeout(timeout, TimeUnit.MILLISECONDS, listener);
+        getProcStarter(command).stdout(outputStream).stderr(new NullStream()).start()
+                .joinWithTimeout(DEFAULT_COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS, listener);
+        // package: name='com.example' versionCode='1' versionName='1.0'
+        String output = outputStream.toString("UTF-8");
+        int start = output.indexOf("package: name='");
+        if (start < 0) {
+            return null;
+        }
+        start += "package: name='".length();
+        int end = output.indexOf('\'', start);
+        return end < 0 ? null : output.substring(start, end);
+    }
+
+    /**
+     * Installs or replaces an APK of the build node on the device, streaming it over a single adb connection.
+     * Nothing is sent if the device already has the very same APK installed.
+     *
+     * @param packageName Package of the APK, or <code>null</code> to always install.
+     * @return {@code false} if the APK was already installed.
+     */
+    public boolean installPackage(FilePath apk, String packageName, int timeout_in_ms) throws IOException, InterruptedException {
+        String key = packageName == null ? null : DeviceManifest.PACKAGE_PREFIX + packageName;
+        DeviceFile previous = key == null ? null : getManifest().get(key);
+        DeviceFile installed = callAdb(AdbCallables.install(serial(), apk.getRemote(), packageName, previous, timeout_in_ms));
+        if (installed != null) {
+            if (key != null) {
+                getManifest().put(key, installed);
+            }
+            return installed.transferred > 0;
+        }
+
+        ArgumentListBuilder command = getToolCommand(Tool.ADB, String.format("-s %s install -r", serial()));
+        command.add(apk.getRemote());
+        String output = runAdb(command, timeout_in_ms);
+        if (key != null) {
+            getManifest().remove(key);
+        }
+        if (!output.contains("Success")) {
+            throw new IOException("Failed to install " + apk.getName() + " on " + serial() + ": " + output.trim());
+        }
+        return true;
+    }
+
+    /**
+     * Pushes a file of the build node to the device, skipping it if the device still has the same content from
+     * an earlier build, and sending only the changed chunks of a large file the device has an older version of.
+     *
+     * @return How many bytes had to be sent, 0 if the device already had the file.
+     */
+    public long pushFile(FilePath file, String remotePath, int timeout_in_ms) throws IOException, InterruptedException {
+        DeviceFile pushed = callAdb(AdbCallables.push(serial(), file.getRemote(), remotePath, getManifest().get(remotePath), timeout_in_ms));
+        if (pushed != null) {
+            getManifest().put(remotePath, pushed);
+            return pushed.transferred;
+        }
+
+        ArgumentListBuilder command = getToolCommand(Tool.ADB, String.format("-s %s push", serial()));
+        command.add(file.getRemote(), remotePath);
+        runAdb(command, timeout_in_ms);
+        getManifest().remove(remotePath);
+        return file.length();
+    }
+
+    /**
+     * @return What the plugin sent to this device so far, across builds.
+     */
+    public DeviceManifest getManifest() {
+        return DeviceManifest.of(serial());
+    }
 
-        log(logger(), outputStream.toString());
+    public void sendCommand(String command, int timeout) throws IOException, InterruptedException {
+        log(logger(), adb(command, timeout));
+    }
+
+    /**
+     * Runs an adb command which does not take a serial.
+     *
+     * @return What adb answered.
+     */
+    String adb(String command, int timeout) throws IOException, InterruptedException {
+        String output = hostCommand(command, timeout);
+        if (output == null) {
+            output = runAdb(command, timeout);
+        }
+        return output;
     }
 
     public void sendCommandWithSerial(String command, int timeout_in_ms) throws IOException, InterruptedException {
-        final String commandArgs = String.format("-s %s shell %s", serial(), command);
-        ArgumentListBuilder adbConnectCmd = getToolCommand(Tool.ADB, commandArgs);
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        getProcStarter(adbConnectCmd).stdout(outputStream).start().joinWithTimeout(timeout_in_ms, TimeUnit.MILLISECONDS, listener);
+        String output = callAdb(AdbCallables.shell(serial(), command, timeout_in_ms));
+        if (output == null) {
+            output = runAdb(String.format("-s %s shell %s", serial(), command), timeout_in_ms);
+        }
 
-        log(logger(), outputStream.toString());
+        log(logger(), output);
     }
 
-    public void waitDeviceReady(PrintStream logger, int timeout_in_ms, int check_interval_in_ms) throws TimeoutException {
-        long start = System.currentTimeMillis();
-        boolean foundDeviceReady = false;
-        while (System.currentTimeMillis() < start + timeout_in_ms) {
-
-            log(logger, Messages.WAITING_FOR_DEVICE());
-
-            ArgumentListBuilder adbConnectCmd = getToolCommand(Tool.ADB, "devices");
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            try {
-                getProcStarter(adbConnectCmd).stdout(outputStream).start().joinWithTimeout(DEFAULT_COMMAND_TIMEOUT_MS, TimeUnit.MILLISECONDS, listener);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+    /**
+     * Runs the adb command through the adb server of the build node when it maps to a <tt>host:</tt> service.
+     *
+     * @return The server reply, or {@code null} if the command has to be run with the adb executable.
+     */
+    private String hostCommand(String command, int timeout_in_ms) throws IOException, InterruptedException {
+        String service = null;
+        if (command.equals("devices")) {
+            service = "host:devices";
+        } else if (command.startsWith("connect ")) {
+            service = "host:connect:" + command.substring("connect ".length()).trim();
+        } else if (command.startsWith("disconnect ")) {
+            service = "host:disconnect:" + command.substring("disconnect ".length()).trim();
+        }
+        if (service == null) {
+            return null;
+        }
+        return callAdb(AdbCallables.hostRequest(service, timeout_in_ms));
+    }
 
-            if (outputStream.toString().contains(serial() + "\t" + "device")) {
-                foundDeviceReady = true;
-                break;
-            }
+    /**
+     * Runs an adb client request on the build node.
+     *
+     * @return The result, or {@code null} if the adb server could not serve the request and the caller should fork adb instead.
+     */
+    private <V> V callAdb(Callable<V, IOException> task) throws IOException, InterruptedException {
+        if (ADB_CLIENT_DISABLED || launcher == null) {
+            return null;
+        }
+        VirtualChannel channel = launcher.getChannel();
+        if (channel == null) {
+            return null;
+        }
+        try {
+            return channel.call(task);
+        } catch (AdbException e) {
+            LOGGER.log(Level.FINE, "Falling back to the adb executable", e);
+            return null;
+        }
+    }
 
-            try {
-                Thread.sleep(check_interval_in_ms);
-            } catch (InterruptedException e) {
-                break;
+    /**
+     * Forks the adb executable and waits for it to finish.
+     *
+     * @return Everything it printed on stdout.
+     */
+    private String runAdb(String args, int timeout_in_ms) throws IOException, InterruptedException {
+        return runAdb(getToolCommand(Tool.ADB, args), timeout_in_ms);
+    }
+
+    private String runAdb(ArgumentListBuilder adbCmd, int timeout_in_ms) throws IOException, InterruptedException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        getProcStarter(adbCmd).stdout(outputStream).start().joinWithTimeout(timeout_in_ms, TimeUnit.MILLISECONDS, listener);
+        return outputStream.toString();
+    }
+
+    /**
+     * Waits until adb sees the device online and the device reports <tt>sys.boot_completed=1</tt>.
+     * adb is notified of the state change and the property is checked on the device itself, so nothing polls from here.
+     */
+    public void waitDeviceReady(PrintStream logger, int timeout_in_ms) throws TimeoutException, InterruptedException {
+        log(logger, Messages.WAITING_FOR_DEVICE());
+
+        boolean foundDeviceReady = false;
+        try {
+            Boolean ready = callAdb(AdbCallables.waitDeviceReady(serial(), BOOT_COMPLETED_SCRIPT, timeout_in_ms));
+            if (ready == null) {
+                ArgumentListBuilder command = getToolCommand(Tool.ADB, String.format("-s %s wait-for-device shell", serial()));
+                command.add(BOOT_COMPLETED_SCRIPT);
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                getProcStarter(command).stdout(outputStream).start().joinWithTimeout(timeout_in_ms, TimeUnit.MILLISECONDS, listener);
+                ready = outputStream.toString().contains(AdbCallables.BOOT_COMPLETED);
             }
+            foundDeviceReady = ready;
+        } catch (SocketTimeoutException e) {
+            LOGGER.log(Level.FINE, "Timed out waiting for " + serial(), e);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not check boot completion of " + serial(), e);
+            log(logger, Messages.COULD_NOT_CHECK_BOOT_COMPLETION(), e);
+        } catch (InterruptedException e) {
+            // an aborted build is not a device which failed to come up
+            log(logger, Messages.INTERRUPTED_DURING_BOOT_COMPLETION());
+            throw e;
         }
 
         if (!foundDeviceReady) {
@@ -0,0 +1,131 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.tasks.BuildStepDescriptor;
+import hudson.tasks.Builder;
+import hudson.util.DaemonThreadFactory;
+import org.jenkinsci.plugins.android_device.sdk.AndroidSdk;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.jenkinsci.plugins.android_device.AndroidRemote.log;
+
+/**
+ * Installs APKs from the workspace on every device reserved by {@link AndroidRemote}, all devices at once.
+ */
+public class AndroidInstaller extends Builder {
+    private static final int INSTALL_TIMEOUT_MS = 5 * 60 * 1000;
+
+    /**
+     * Ant style patterns of the APKs to install, relative to the workspace, e.g. <tt>app/build/**&#47;*.apk</tt>.
+     * They are installed in the order they are listed.
+     */
+    public final String apkFiles;
+
+    @DataBoundConstructor
+    public AndroidInstaller(String apkFiles) {
+        this.apkFiles = apkFiles;
+    }
+
+    @Override
+    public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
+            throws InterruptedException, IOException {
+        final PrintStream logger = listener.getLogger();
+        EnvVars environment = build.getEnvironment(listener);
+
+        String serials = environment.get("ANDROID_SERIALS");
+        if (Util.fixEmpty(serials) == null) {
+            log(logger, Messages.NO_DEVICE_TO_INSTALL_ON());
+            return false;
+        }
+
+        List<FilePath> apks = new ArrayList<FilePath>();
+        for (String pattern : Util.tokenize(environment.expand(apkFiles), ",")) {
+            for (FilePath apk : build.getWorkspace().list(pattern.trim())) {
+                apks.add(apk);
+            }
+        }
+        if (apks.isEmpty()) {
+            log(logger, Messages.NO_APK_FOUND(apkFiles));
+            return false;
+        }
+
+        String androidHome = environment.get("ANDROID_HOME");
+        AndroidSdk sdk = new AndroidSdk(androidHome, androidHome);
+        List<AndroidDeviceContext> devices = new ArrayList<AndroidDeviceContext>();
+        for (String serial : serials.split(",")) {
+            int colon = serial.lastIndexOf(':');
+            devices.add(new AndroidDeviceContext(build, launcher, listener, sdk,
+                    serial.substring(0, colon), Integer.parseInt(serial.substring(colon + 1))));
+        }
+
+        // the package names tell whether a device already has an APK, aapt only has to read them once
+        final Map<FilePath, String> packageNames = new LinkedHashMap<FilePath, String>();
+        for (FilePath apk : apks) {
+            packageNames.put(apk, devices.get(0).getPackageName(apk));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(devices.size(), new DaemonThreadFactory());
+        try {
+            List<Future<Void>> installs = new ArrayList<Future<Void>>();
+            for (final AndroidDeviceContext device : devices) {
+                installs.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        // one after another, the package manager of a device installs one package at a time anyway
+                        for (Map.Entry<FilePath, String> apk : packageNames.entrySet()) {
+                            long start = System.currentTimeMillis();
+                            if (device.installPackage(apk.getKey(), apk.getValue(), INSTALL_TIMEOUT_MS)) {
+                                log(logger, Messages.APK_INSTALLED(apk.getKey().getName(), device.serial(),
+                                        System.currentTimeMillis() - start));
+                            } else {
+                                log(logger, Messages.APK_UNCHANGED(apk.getKey().getName(), device.serial()));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            boolean success = true;
+            for (Future<Void> install : installs) {
+                try {
+                    install.get();
+                } catch (ExecutionException e) {
+                    log(logger, e.getCause().getMessage());
+                    success = false;
+                }
+            }
+            return success;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends BuildStepDescriptor<Builder> {
+
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return Messages.INSTALL_APKS_DESCRIPTION();
+        }
+    }
+}
@@ -5,22 +5,31 @@ import hudson.*;
 import hudson.model.*;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
+import hudson.util.DaemonThreadFactory;
 import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.android_device.api.DeviceFarmApi;
 import org.jenkinsci.plugins.android_device.api.DeviceFarmApiImpl;
 import org.jenkinsci.plugins.android_device.api.MalformedResponseException;
 import org.jenkinsci.plugins.android_device.api.NoDeviceAvailableException;
+import org.jenkinsci.plugins.android_device.api.ReservationRequest;
+import org.jenkinsci.plugins.android_device.api.SharedDeviceFarmApi;
 import org.jenkinsci.plugins.android_device.sdk.AndroidSdk;
+import org.jenkinsci.plugins.android_device.sdk.SdkDescriptor;
+import org.jenkinsci.plugins.android_device.sdk.SdkDescriptorCache;
+import org.jenkinsci.plugins.android_device.sdk.SdkIndex;
 import org.jenkinsci.plugins.android_device.sdk.SdkUtils;
-import org.jenkinsci.plugins.android_device.util.ReplaceFilterOutputStream;
 import org.jenkinsci.plugins.android_device.util.Utils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.export.Exported;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
 
 /**
  * Created by skyisle on 08/25/2014.
@@ -31,18 +40,121 @@ public class AndroidRemote extends BuildWrapper {
     public static final int DEVICE_CONNECT_TIMEOUT_IN_MILLIS = 15000;
     private static final int KILL_PROCESS_TIMEOUT_MS = 5000;
     public static final int DEVICE_READY_CHECK_INTERVAL_IN_MS = 5000;
+    private static final int HEALTH_PROBE_TIMEOUT_MS = 5000;
+    private static final int PREFLIGHT_TIMEOUT_MS = 3000;
+    /**
+     * How many times a build tries to get usable devices before giving up, all within the device wait timeout.
+     */
+    private static final int MAX_ACQUISITION_ATTEMPTS = 3;
+    private static final int ACQUISITION_RETRY_DELAY_MS = 2000;
     public static final String ARTIFACT_LOGCAT_TXT = "logcat.txt";
+    public static final String ARTIFACT_SCREENCAP_PNG = "screencap.png";
+    public static final String ARTIFACT_TIMELINE_ZIP = "timeline.zip";
+    public static final String ARTIFACT_CRASHES_TXT = "crashes.txt";
+
+    /**
+     * Runs the setup stages which do not have to wait for each other.
+     */
+    private static final ExecutorService SETUP_EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory());
 
     @Exported
     public String deviceApiUrl;
     @Exported
     public String tag;
+    /**
+     * How many devices matching the tag to reserve for each build.
+     */
+    @Exported
+    public int deviceCount;
+    /**
+     * Whether to wait in the farm queue while no device is free, instead of giving up right away.
+     */
+    @Exported
+    public boolean queued;
+    @Exported
+    public int priority;
+    /**
+     * How long to wait in the farm queue, in minutes.
+     */
+    @Exported
+    public int maxWaitMinutes;
+    /**
+     * How long to keep the devices after a build for the next build of the job, in seconds. 0 releases them right away.
+     */
+    @Exported
+    public int leaseIdleSeconds;
+    /**
+     * Width to scale teardown screenshots down to on the build node, in pixels. 0 keeps them as they are.
+     */
+    @Exported
+    public int screenshotMaxWidth;
+    /**
+     * Seconds between screenshots for the screen timeline archived with the build. 0 disables the timeline.
+     */
+    @Exported
+    public int timelineIntervalSeconds;
+    /**
+     * logcat filterspec for the archived log, e.g. <tt>MyApp:D *:W</tt>. Everything is archived if empty.
+     */
+    @Exported
+    public String logcatFilter;
+    /**
+     * Whether to probe the devices before the build, replacing those which are not fit for it.
+     */
+    @Exported
+    public boolean preflight;
+    /**
+     * Free storage on <tt>/data</tt> pre-flight requires, in MB. 0 does not check it.
+     */
+    @Exported
+    public int minFreeStorageMb;
+    /**
+     * Battery level pre-flight requires, in percent. 0 does not check it.
+     */
+    @Exported
+    public int minBatteryPercent;
     private DescriptorImpl descriptor;
 
-    @DataBoundConstructor
     public AndroidRemote(String deviceApiUrl, String tag) {
+        this(deviceApiUrl, tag, 1);
+    }
+
+    public AndroidRemote(String deviceApiUrl, String tag, int deviceCount) {
+        this(deviceApiUrl, tag, deviceCount, false, ReservationRequest.DEFAULT_PRIORITY, 0, 0, 0, 0, null, false, 0, 0);
+    }
+
+    @DataBoundConstructor
+    public AndroidRemote(String deviceApiUrl, String tag, int deviceCount, boolean queued, int priority, int maxWaitMinutes,
+                         int leaseIdleSeconds, int screenshotMaxWidth, int timelineIntervalSeconds, String logcatFilter,
+                         boolean preflight, int minFreeStorageMb, int minBatteryPercent) {
         this.deviceApiUrl = deviceApiUrl;
         this.tag = tag;
+        this.deviceCount = deviceCount;
+        this.queued = queued;
+        this.priority = priority;
+        this.maxWaitMinutes = maxWaitMinutes;
+        this.leaseIdleSeconds = leaseIdleSeconds;
+        this.screenshotMaxWidth = screenshotMaxWidth;
+        this.timelineIntervalSeconds = timelineIntervalSeconds;
+        this.logcatFilter = Util.fixEmptyAndTrim(logcatFilter);
+        this.preflight = preflight;
+        this.minFreeStorageMb = minFreeStorageMb;
+        this.minBatteryPercent = minBatteryPercent;
+    }
+
+    public int getDeviceCount() {
+        // configurations saved before the device count was introduced have 0
+        return Math.max(1, deviceCount);
+    }
+
+    /**
+     * @return How long to wait for the devices, in milliseconds.
+     */
+    public int getDeviceWaitTimeout() {
+        if (queued && maxWaitMinutes > 0) {
+            return maxWaitMinutes * 60 * 1000;
+        }
+        return DEVICE_WAIT_TIMEOUT_IN_MILLIS;
     }
 
     /**
@@ -76,64 +188,177 @@ public class AndroidRemote extends BuildWrapper {
 
 
     @Override
-    public BuildWrapper.Environment setUp(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+    public BuildWrapper.Environment setUp(final AbstractBuild build, final Launcher launcher, final BuildListener listener) throws IOException, InterruptedException {
         final PrintStream logger = listener.getLogger();
 
-        final DeviceFarmApi api = new DeviceFarmApiImpl();
         long start = System.currentTimeMillis();
 
-        try {
-            EnvVars environment = build.getEnvironment(listener);
-            String expendedTag = environment.expand(tag);
+        if (descriptor == null) {
+            descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        }
+        DeviceFarmApi api = descriptor.newApi();
 
-            log(logger, Messages.TRYING_TO_CONNECT_API_SERVER(deviceApiUrl, expendedTag));
-            api.connectApiServer(logger, deviceApiUrl, expendedTag, build.getProject().getAbsoluteUrl() + build.getNumber());
+        EnvVars environment = build.getEnvironment(listener);
+        String expendedTag = environment.expand(tag);
 
-            final RemoteDevice reserved = api.waitApiResponse(logger,
-                    DEVICE_WAIT_TIMEOUT_IN_MILLIS, DEVICE_READY_CHECK_INTERVAL_IN_MS);
-            log(logger, Messages.DEVICE_IS_READY(passedSeconds(start), reserved.ip, reserved.port, reserved.url));
+        DeviceSetupAction action = new DeviceSetupAction();
+        build.addAction(action);
+        final StageTimer timer = new StageTimer(logger, action, expendedTag, deviceApiUrl);
 
-            if (descriptor == null) {
-                descriptor = Hudson.getInstance().getDescriptorByType(DescriptorImpl.class);
+        // SDK discovery does not depend on the reserved device, so it runs while we wait for the device farm
+        final Computer computer = Computer.currentComputer();
+        final Future<SdkDescriptor> androidHomeFuture = async(timer, StageTimer.SDK_DISCOVERY, null, new Callable<SdkDescriptor>() {
+            public SdkDescriptor call() throws Exception {
+                // Substitute environment and build variables into config
+                return discoverAndroidSdkHome(build, computer, launcher, listener);
             }
+        });
 
-            // Substitute environment and build variables into config
-            final String androidHome = discoverAndroidSdkHome(build, launcher, listener);
-            log(logger, Messages.USING_SDK(androidHome));
-
-            AndroidSdk sdk = new AndroidSdk(androidHome, androidHome);
-            final AndroidDeviceContext device = new AndroidDeviceContext(build, launcher, listener, sdk, reserved.ip, reserved.port);
-            // disconnect first to workaround previous error
-            device.disconnect();
-
-            // connect device with adb
-            device.connect(DEVICE_CONNECT_TIMEOUT_IN_MILLIS);
+        try {
+            final int count = getDeviceCount();
+            final String leaseKey = WarmLeasePool.key(build.getProject().getFullName(), computer.getName(), expendedTag, count);
+            WarmLeasePool.WarmLease lease = leaseIdleSeconds > 0 ? WarmLeasePool.get().take(leaseKey) : null;
+            if (lease != null && !lease.api.isConnected()) {
+                lease.release();
+                lease = null;
+            }
 
-            device.waitDeviceReady(logger, DEVICE_CONNECT_TIMEOUT_IN_MILLIS, 1000);
-            // check availability
-            device.devices();
+            List<RemoteDevice> reservedDevices = null;
+            boolean warm = false;
+            if (lease != null) {
+                // the previous build of this job left its devices for us
+                api = lease.api;
+                reservedDevices = lease.devices;
+                warm = true;
+                for (RemoteDevice reserved : reservedDevices) {
+                    log(logger, Messages.REUSING_WARM_LEASE(reserved.ip, reserved.port));
+                }
+                QueuedReservation unused = build.getAction(QueuedReservation.class);
+                if (unused != null) {
+                    unused.release();
+                }
+            }
 
-            // unlock screen
-            device.unlockScreen();
+            // devices which could not be had or used are given back and others asked for, until the wait deadline;
+            // a failed queued reservation already waited for the farm without an executor, so it is not asked again with one
+            List<String> excluded = new ArrayList<String>();
+            long deadline = start + getDeviceWaitTimeout();
+            SdkDescriptor sdkDescriptor = null;
+            AndroidSdk sdk = null;
+            List<DeviceShard> preparedShards;
+            boolean claiming = false;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    if (reservedDevices == null && attempt == 1) {
+                        claiming = true;
+                        reservedDevices = claimQueuedReservation(build, expendedTag, count);
+                        claiming = false;
+                        if (reservedDevices != null) {
+                            // the farm was asked while the build was still queued, and the wait counts from then
+                            QueuedReservation reservation = build.getAction(QueuedReservation.class);
+                            api = reservation.getApi();
+                            deadline = reservation.getStarted() + getDeviceWaitTimeout();
+                            timer.finished(StageTimer.RESERVATION_WAIT, null, reservation.getStarted());
+                            for (RemoteDevice reserved : reservedDevices) {
+                                log(logger, Messages.DEVICE_IS_READY(passedSeconds(reservation.getStarted()), reserved.ip, reserved.port, reserved.url));
+                            }
+                        }
+                    }
+                    if (reservedDevices == null) {
+                        reservedDevices = reserve(build, timer, api, expendedTag, count, start, deadline, excluded);
+                    }
+
+                    if (sdk == null) {
+                        sdkDescriptor = await(androidHomeFuture);
+                        log(logger, Messages.USING_SDK(sdkDescriptor.getRoot()));
+                        sdk = new AndroidSdk(sdkDescriptor);
+                    }
+                    preparedShards = prepareDevices(build, launcher, listener, timer, sdk, reservedDevices, api, warm);
+                    break;
+                } catch (FailedToConnectApiServerException e) {
+                    if (claiming || !retryAcquisition(timer, attempt, deadline, Messages.FAILED_TO_CONNECT_API_SERVER())) {
+                        throw e;
+                    }
+                } catch (MalformedResponseException e) {
+                    if (claiming || !retryAcquisition(timer, attempt, deadline, Messages.FAILED_TO_PARSE_DEVICE_FARM_RESPONSE())) {
+                        throw e;
+                    }
+                } catch (TimeoutException e) {
+                    if (claiming || !retryAcquisition(timer, attempt, deadline, Messages.DEVICE_WAIT_TIMEOUT(passedSeconds(start)))) {
+                        throw e;
+                    }
+                } catch (NoDeviceAvailableException e) {
+                    if (claiming || !retryAcquisition(timer, attempt, deadline, Messages.NO_SUCH_DEVICE())) {
+                        throw e;
+                    }
+                } catch (UnhealthyDeviceException e) {
+                    // the devices were released along with the failed preparation
+                    api = null;
+                    timer.count(DeviceMetrics.UNHEALTHY);
+                    if (!retryAcquisition(timer, attempt, deadline, Messages.DEVICE_UNHEALTHY(e.getMessage()))) {
+                        throw e;
+                    }
+                    log(logger, Messages.EXCLUDING_DEVICE(e.serial));
+                    excluded.add(e.serial);
+                }
 
-            // Start dumping logcat to temporary file
-            final LogcatCollector logcatCollector = new LogcatCollector(build, device);
-            logcatCollector.start();
+                if (api != null) {
+                    api.disconnect();
+                }
+                api = descriptor.newApi();
+                reservedDevices = null;
+                warm = false;
+                Thread.sleep(Math.max(0, Math.min(ACQUISITION_RETRY_DELAY_MS, deadline - System.currentTimeMillis())));
+            }
+            final List<DeviceShard> shards = preparedShards;
+            final List<RemoteDevice> devices = reservedDevices;
+            final DeviceFarmApi reservationApi = api;
+            final String androidHome = sdkDescriptor.getRoot();
+            timer.finished(StageTimer.ACQUISITION, null, start);
+            timer.count(warm ? DeviceMetrics.WARM_REUSE : DeviceMetrics.ACQUIRED);
 
             return new BuildWrapper.Environment() {
                 @Override
                 public void buildEnvVars(Map<String, String> env) {
+                    AndroidDeviceContext device = shards.get(0).device;
                     env.put("ANDROID_IP", device.ip());
                     env.put("ANDROID_HOME", androidHome);
                     env.put("ANDROID_SDK_HOME", androidHome);
                     env.put("ANDROID_PORT", Integer.toString(device.port()));
                     env.put("ANDROID_SERIAL", device.serial());
+
+                    // one set of variables per device so that test runners can shard the suite
+                    StringBuilder serials = new StringBuilder();
+                    for (DeviceShard shard : shards) {
+                        if (serials.length() > 0) {
+                            serials.append(',');
+                        }
+                        serials.append(shard.device.serial());
+                        env.put("ANDROID_SERIAL_" + shard.index, shard.device.serial());
+                        env.put("ANDROID_IP_" + shard.index, shard.device.ip());
+                        env.put("ANDROID_PORT_" + shard.index, Integer.toString(shard.device.port()));
+                    }
+                    env.put("ANDROID_SERIALS", serials.toString());
+                    env.put("ANDROID_SHARD_COUNT", Integer.toString(shards.size()));
                 }
 
                 @Override
                 public boolean tearDown(AbstractBuild build, BuildListener listener)
                         throws IOException, InterruptedException {
-                    cleanUp(build, device, api, logcatCollector);
+                    if (reservationApi.isLost()) {
+                        // someone else may have used the devices meanwhile, so the results cannot be trusted
+                        log(listener.getLogger(), Messages.LEASE_LOST_DURING_BUILD());
+                        build.setResult(Result.FAILURE);
+                        cleanUp(build, timer, shards, reservationApi);
+                    } else if (leaseIdleSeconds > 0) {
+                        // keep the devices connected and reserved for the next build of this job
+                        cleanUp(build, timer, shards, null, false);
+                        WarmLeasePool.get().park(leaseKey,
+                                new WarmLeasePool.WarmLease(reservationApi, devices, launcher), leaseIdleSeconds);
+                        log(listener.getLogger(), Messages.KEEPING_WARM_LEASE(leaseIdleSeconds));
+                    } else {
+                        cleanUp(build, timer, shards, reservationApi);
+                    }
 
                     return true;
                 }
@@ -141,54 +366,439 @@ public class AndroidRemote extends BuildWrapper {
 
         } catch (FailedToConnectApiServerException e) {
             log(logger, Messages.FAILED_TO_CONNECT_API_SERVER());
+            timer.count(DeviceMetrics.FAILED_CONNECT);
         } catch (MalformedResponseException e) {
             log(logger, Messages.FAILED_TO_PARSE_DEVICE_FARM_RESPONSE());
+            timer.count(DeviceMetrics.FAILED_RESPONSE);
         } catch (TimeoutException e) {
             log(logger, Messages.DEVICE_WAIT_TIMEOUT(passedSeconds(start)));
+            timer.count(DeviceMetrics.FAILED_TIMEOUT);
         } catch (NoDeviceAvailableException e) {
             log(logger, Messages.NO_SUCH_DEVICE());
+            timer.count(DeviceMetrics.FAILED_NO_DEVICE);
+        } catch (UnhealthyDeviceException e) {
+            log(logger, Messages.DEVICE_UNHEALTHY(e.getMessage()));
+        } catch (InterruptedException e) {
+            // the build was aborted while waiting for its devices, which are given back rather than asked for again
+            if (api != null) {
+                api.disconnect();
+            }
+            throw e;
+        } finally {
+            androidHomeFuture.cancel(true);
         }
 
         build.setResult(Result.NOT_BUILT);
-        cleanUp(null, null, api, null);
+        cleanUp(null, timer, Collections.<DeviceShard>emptyList(), api);
         return null;
     }
 
+    /**
+     * Starts a farm reservation for a queued build, so that the build only takes an executor once its devices are reserved.
+     *
+     * @param queueId The id of the queue item, which tells apart queued builds of the same job before they get a number.
+     * @return The reservation to attach to the queue item, or {@code null} to reserve once the build runs.
+     */
+    QueuedReservation reserveWhileQueued(AbstractProject project, int queueId, ParametersAction parameters) {
+        if (!queued) {
+            return null;
+        }
+        // only the build parameters are known while queued
+        Map<String, String> variables = new HashMap<String, String>();
+        if (parameters != null) {
+            for (ParameterValue value : parameters.getParameters()) {
+                if (value instanceof StringParameterValue) {
+                    variables.put(value.getName(), ((StringParameterValue) value).value);
+                }
+            }
+        }
+        String expandedTag = Util.replaceMacro(tag, variables);
+        if (expandedTag == null || expandedTag.contains("$")) {
+            return null;
+        }
+        if (leaseIdleSeconds > 0 && WarmLeasePool.get().isParked(project.getFullName(), expandedTag, getDeviceCount())) {
+            // the previous build left its devices for this one, asking the farm for more would only wait behind them
+            return null;
+        }
+        return new QueuedReservation(deviceApiUrl, expandedTag, project.getAbsoluteUrl() + "queue/" + queueId,
+                getDeviceCount(), priority, getDeviceWaitTimeout());
+    }
+
+    /**
+     * Takes over the devices reserved while the build was queued, releasing them if they do not fit the build after all.
+     *
+     * @return The reserved devices, or {@code null} to reserve them now.
+     */
+    private List<RemoteDevice> claimQueuedReservation(AbstractBuild build, String expandedTag, int count) throws FailedToConnectApiServerException, MalformedResponseException, TimeoutException, NoDeviceAvailableException {
+        QueuedReservation reservation = build.getAction(QueuedReservation.class);
+        if (reservation == null) {
+            return null;
+        }
+        if (!reservation.matches(deviceApiUrl, expandedTag, count)) {
+            reservation.release();
+            return null;
+        }
+        return reservation.claim();
+    }
+
+    /**
+     * Asks the farm for the devices over a new session, waiting for them until the deadline.
+     *
+     * @param excluded Devices the farm should not give out, as <tt>ip:port</tt>.
+     */
+    private List<RemoteDevice> reserve(AbstractBuild build, StageTimer timer, DeviceFarmApi api, String expandedTag, int count, long start,
+                                       long deadline, List<String> excluded)
+            throws FailedToConnectApiServerException, MalformedResponseException, TimeoutException, NoDeviceAvailableException, InterruptedException {
+        PrintStream logger = timer.getLogger();
+        log(logger, Messages.TRYING_TO_CONNECT_API_SERVER(deviceApiUrl, expandedTag));
+        long stageStart = System.currentTimeMillis();
+        int maxWaitSeconds = (int) Math.max(0, (deadline - stageStart) / 1000);
+        ReservationRequest request = new ReservationRequest(expandedTag, build.getProject().getAbsoluteUrl() + build.getNumber(),
+                count, queued, priority, maxWaitSeconds, new ArrayList<String>(excluded));
+        api.connectApiServer(logger, deviceApiUrl, request, DeviceFarmApiImpl.DEFAULT_CONNECT_TIMEOUT);
+        timer.finished(StageTimer.API_CONNECT, null, stageStart);
+
+        stageStart = System.currentTimeMillis();
+
+        List<RemoteDevice> reservedDevices = new ArrayList<RemoteDevice>();
+        while (reservedDevices.size() < count) {
+            int remaining = (int) Math.max(0, deadline - System.currentTimeMillis());
+            RemoteDevice reserved = api.waitApiResponse(logger, remaining, DEVICE_READY_CHECK_INTERVAL_IN_MS);
+            reservedDevices.add(reserved);
+            log(logger, Messages.DEVICE_IS_READY(passedSeconds(start), reserved.ip, reserved.port, reserved.url));
+        }
+        timer.finished(StageTimer.RESERVATION_WAIT, null, stageStart);
+        return reservedDevices;
+    }
+
+    /**
+     * Tells whether to give getting the devices another try after a failure, logging why if so.
+     *
+     * @param attempt  The attempt which failed, counting from 1.
+     * @param deadline When the build stops waiting for devices.
+     * @param reason   Why the attempt failed.
+     */
+    private boolean retryAcquisition(StageTimer timer, int attempt, long deadline, String reason) {
+        if (attempt >= MAX_ACQUISITION_ATTEMPTS || System.currentTimeMillis() >= deadline || Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        log(timer.getLogger(), reason);
+        log(timer.getLogger(), Messages.RETRYING_ACQUISITION(attempt + 1, MAX_ACQUISITION_ATTEMPTS));
+        timer.count(DeviceMetrics.RETRIED);
+        return true;
+    }
+
+    /**
+     * Connects and prepares the reserved devices all at once, releasing all of them if one fails.
+     */
+    private List<DeviceShard> prepareDevices(final AbstractBuild build, Launcher launcher, BuildListener listener, final StageTimer timer,
+                                             AndroidSdk sdk, List<RemoteDevice> reservedDevices, final DeviceFarmApi api, final boolean warm)
+            throws IOException, InterruptedException {
+        List<DeviceShard> shards = new ArrayList<DeviceShard>();
+        for (RemoteDevice reserved : reservedDevices) {
+            AndroidDeviceContext device = new AndroidDeviceContext(build, launcher, listener, sdk, reserved.ip, reserved.port);
+            shards.add(new DeviceShard(shards.size(), device));
+        }
+
+        // devices are independent of each other, so prepare them all at once
+        List<Future<Void>> preparations = new ArrayList<Future<Void>>();
+        for (final DeviceShard shard : shards) {
+            preparations.add(async(timer, StageTimer.DEVICE_PREPARATION, shard.device.serial(), new Callable<Void>() {
+                public Void call() throws Exception {
+                    prepareDevice(build, timer, shard, api, warm);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < preparations.size(); i++) {
+                try {
+                    await(preparations.get(i));
+                } catch (IOException e) {
+                    // whatever went wrong with the device, another one may do
+                    throw e instanceof UnhealthyDeviceException ? e : new UnhealthyDeviceException(shards.get(i).device.serial(), e);
+                }
+            }
+        } catch (IOException e) {
+            abandon(build, timer, shards, api, preparations);
+            throw e;
+        } catch (InterruptedException e) {
+            // the build was aborted, which is neither the devices' fault nor a reason to reserve others
+            for (Future<Void> preparation : preparations) {
+                preparation.cancel(true);
+            }
+            abandon(build, timer, shards, api, preparations);
+            throw e;
+        }
+        return shards;
+    }
+
+    /**
+     * Connects a reserved device with adb and gets it ready for the build.
+     */
+    private void prepareDevice(AbstractBuild build, StageTimer timer, DeviceShard shard, DeviceFarmApi api, boolean warm) throws IOException, InterruptedException, TimeoutException {
+        final AndroidDeviceContext device = shard.device;
+        final String serial = device.serial();
+
+        long stageStart = System.currentTimeMillis();
+        if (warm && device.isResponsive(HEALTH_PROBE_TIMEOUT_MS)) {
+            // still connected from the previous build
+            timer.finished(StageTimer.HEALTH_PROBE, serial, stageStart);
+        } else {
+            // disconnect first to workaround previous error
+            device.disconnect();
+
+            // connect device with adb
+            device.connect(DEVICE_CONNECT_TIMEOUT_IN_MILLIS);
+            timer.finished(StageTimer.ADB_CONNECT, serial, stageStart);
+
+            stageStart = System.currentTimeMillis();
+            device.waitDeviceReady(timer.getLogger(), DEVICE_CONNECT_TIMEOUT_IN_MILLIS);
+            // check availability
+            device.devices();
+            timer.finished(StageTimer.WAIT_READY, serial, stageStart);
+        }
+
+        if (preflight) {
+            stageStart = System.currentTimeMillis();
+            HealthReport report = device.preflight(PREFLIGHT_TIMEOUT_MS);
+            List<String> problems = report.problems(minFreeStorageMb, minBatteryPercent);
+            api.reportHealth(device.ip(), device.port(), problems.isEmpty(), report.toJson());
+            timer.finished(StageTimer.PREFLIGHT, serial, stageStart);
+            if (!problems.isEmpty()) {
+                throw new UnhealthyDeviceException(serial, problems);
+            }
+        }
+
+        // unlock screen while logcat is starting
+        Future<Void> unlockFuture = async(timer, StageTimer.UNLOCK, serial, new Callable<Void>() {
+            public Void call() throws Exception {
+                device.unlockScreen();
+                return null;
+            }
+        });
+
+        // Start archiving logcat
+        stageStart = System.currentTimeMillis();
+        LogcatCollector logcatCollector = new LogcatCollector(build, device, shard.artifactName(ARTIFACT_LOGCAT_TXT),
+                logcatFilter, shard.artifactName(ARTIFACT_CRASHES_TXT));
+        logcatCollector.start();
+        shard.logcatCollector = logcatCollector;
+        timer.finished(StageTimer.LOGCAT_START, serial, stageStart);
+
+        await(unlockFuture);
+
+        if (timelineIntervalSeconds > 0) {
+            ScreenTimeline timeline = new ScreenTimeline(device,
+                    new File(build.getArtifactsDir(), shard.artifactName(ARTIFACT_TIMELINE_ZIP)), screenshotMaxWidth);
+            timeline.start(timelineIntervalSeconds);
+            shard.timeline = timeline;
+        }
+    }
+
+    /**
+     * Releases everything after one of the devices could not be prepared. Each step only does its best,
+     * since the devices just failed to come up, and the reservation is given back whatever else fails.
+     */
+    private void abandon(final AbstractBuild build, StageTimer timer, List<DeviceShard> shards, DeviceFarmApi api, List<Future<Void>> preparations) {
+        PrintStream logger = timer.getLogger();
+        try {
+            for (Future<Void> preparation : preparations) {
+                try {
+                    preparation.get();
+                } catch (ExecutionException ignore) {
+                } catch (CancellationException ignore) {
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                final DeviceShard shard = shards.get(i);
+                if (isPrepared(preparations.get(i))) {
+                    // only a device which came up has a timeline and a screen worth keeping
+                    bestEffort(logger, shard, new Callable<Void>() {
+                        public Void call() throws Exception {
+                            if (shard.timeline != null) {
+                                shard.timeline.stop();
+                            }
+                            return null;
+                        }
+                    });
+                    bestEffort(logger, shard, new Callable<Void>() {
+                        public Void call() throws Exception {
+                            screenCaptureToFile(build, shard.device, shard.artifactName(ARTIFACT_SCREENCAP_PNG));
+                            return null;
+                        }
+                    });
+                }
+                bestEffort(logger, shard, new Callable<Void>() {
+                    public Void call() throws Exception {
+                        if (shard.logcatCollector != null) {
+                            shard.logcatCollector.saveToFile(KILL_PROCESS_TIMEOUT_MS);
+                        }
+                        return null;
+                    }
+                });
+                bestEffort(logger, shard, new Callable<Void>() {
+                    public Void call() throws Exception {
+                        shard.device.disconnect();
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            long stageStart = System.currentTimeMillis();
+            api.disconnect();
+            timer.finished(StageTimer.FARM_RELEASE, null, stageStart);
+        }
+    }
+
+    private static boolean isPrepared(Future<Void> preparation) {
+        if (!preparation.isDone() || preparation.isCancelled()) {
+            return false;
+        }
+        try {
+            preparation.get();
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Runs a cleanup step of a device, logging rather than throwing what goes wrong.
+     */
+    private static void bestEffort(PrintStream logger, DeviceShard shard, Callable<Void> step) {
+        try {
+            step.call();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log(logger, Messages.CLEANUP_FAILED(shard.device.serial(), e), e);
+        } catch (Exception e) {
+            log(logger, Messages.CLEANUP_FAILED(shard.device.serial(), e), e);
+        }
+    }
+
+    /**
+     * Starts a setup stage on the setup pool, timing it once done.
+     */
+    private static <T> Future<T> async(final StageTimer timer, final String stage, final String device, final Callable<T> task) {
+        return SETUP_EXECUTOR.submit(new Callable<T>() {
+            public T call() throws Exception {
+                long start = System.currentTimeMillis();
+                T result = task.call();
+                timer.finished(stage, device, start);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Waits for a setup stage, rethrowing whatever made it fail.
+     */
+    private static <T> T await(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
     private long passedSeconds(long start) {
         return (System.currentTimeMillis() - start) / 1000;
     }
 
-    private String discoverAndroidSdkHome(AbstractBuild build, Launcher launcher, BuildListener listener) {
-        final EnvVars envVars = Utils.getEnvironment(build, listener);
+    /**
+     * Resolves and indexes the SDK on the build node, once per node and global config until the node reconnects.
+     */
+    private SdkDescriptor discoverAndroidSdkHome(AbstractBuild build, Computer computer, Launcher launcher, BuildListener listener)
+            throws IOException, InterruptedException {
         final Map<String, String> buildVars = build.getBuildVariables();
+        String config = Util.replaceMacro(descriptor.androidHome, buildVars) + '\n' + descriptor.getBuildToolsVersion();
+        SdkDescriptor sdk = SdkDescriptorCache.get().get(computer.getName(), config);
+        if (sdk != null) {
+            return sdk;
+        }
+
+        final EnvVars envVars = Utils.getEnvironment(computer, build, listener);
 
         // SDK location
-        Node node = Computer.currentComputer().getNode();
+        Node node = computer.getNode();
         String androidHome = Utils.expandVariables(envVars, buildVars, descriptor.androidHome);
         androidHome = SdkUtils.discoverAndroidHome(launcher, node, envVars, androidHome);
-        return androidHome;
+        if (androidHome == null) {
+            return new SdkDescriptor(null, descriptor.getBuildToolsVersion(), null);
+        }
+        sdk = new SdkDescriptor(androidHome, descriptor.getBuildToolsVersion(), SdkIndex.scan(launcher.getChannel(), androidHome));
+        SdkDescriptorCache.get().put(computer.getName(), config, sdk);
+        return sdk;
     }
 
-    private static void screenCaptureToFile(AbstractBuild build, AndroidDeviceContext device) throws IOException, InterruptedException {
-        FilePath screencapFile = build.getWorkspace().createTempFile("screencap", ".png");
-        OutputStream screencapStream = screencapFile.write();
-        FilterOutputStream replaceFilterStream = new ReplaceFilterOutputStream(screencapStream);
-        device.screenshot(replaceFilterStream);
-        screencapFile.copyTo(new FilePath(build.getArtifactsDir()).child("screencap.png"));
+    /**
+     * Streams a screenshot of the device straight into the artifacts directory.
+     */
+    private void screenCaptureToFile(AbstractBuild build, AndroidDeviceContext device, String saveFileName) throws IOException, InterruptedException {
+        File artifactsDir = build.getArtifactsDir();
+        if (!artifactsDir.isDirectory() && !artifactsDir.mkdirs()) {
+            throw new IOException("Failed to create " + artifactsDir);
+        }
+        OutputStream screencapStream = new BufferedOutputStream(new FileOutputStream(new File(artifactsDir, saveFileName)));
+        try {
+            device.screenshot(screencapStream, screenshotMaxWidth);
+        } finally {
+            screencapStream.close();
+        }
     }
 
-    private void cleanUp(AbstractBuild build, AndroidDeviceContext device, DeviceFarmApi api, LogcatCollector logcatProcess) throws IOException, InterruptedException {
-        if (logcatProcess != null) {
-            logcatProcess.saveToFile(KILL_PROCESS_TIMEOUT_MS, ARTIFACT_LOGCAT_TXT);
-        }
+    private void cleanUp(AbstractBuild build, StageTimer timer, List<DeviceShard> shards, DeviceFarmApi api) throws IOException, InterruptedException {
+        cleanUp(build, timer, shards, api, true);
+    }
 
-        if (device != null) {
-            screenCaptureToFile(build, device);
-            device.disconnect();
+    /**
+     * @param disconnectDevices Whether to disconnect the devices from adb, which is skipped when they are kept for the next build.
+     */
+    private void cleanUp(AbstractBuild build, StageTimer timer, List<DeviceShard> shards, DeviceFarmApi api, boolean disconnectDevices) throws IOException, InterruptedException {
+        for (DeviceShard shard : shards) {
+            String serial = shard.device.serial();
+            long stageStart = System.currentTimeMillis();
+            if (shard.timeline != null) {
+                shard.timeline.stop();
+                timer.finished(StageTimer.TIMELINE_STOP, serial, stageStart);
+            }
+            if (shard.logcatCollector != null) {
+                stageStart = System.currentTimeMillis();
+                shard.logcatCollector.saveToFile(KILL_PROCESS_TIMEOUT_MS);
+                timer.finished(StageTimer.LOGCAT_SAVE, serial, stageStart);
+            }
+
+            stageStart = System.currentTimeMillis();
+            screenCaptureToFile(build, shard.device, shard.artifactName(ARTIFACT_SCREENCAP_PNG));
+            timer.finished(StageTimer.SCREENSHOT, serial, stageStart);
+            if (disconnectDevices) {
+                stageStart = System.currentTimeMillis();
+                shard.device.disconnect();
+                timer.finished(StageTimer.ADB_DISCONNECT, serial, stageStart);
+            }
         }
 
         if (api != null) {
+            long stageStart = System.currentTimeMillis();
             api.disconnect();
+            timer.finished(StageTimer.FARM_RELEASE, null, stageStart);
         }
     }
 
@@ -202,6 +812,14 @@ public class AndroidRemote extends BuildWrapper {
          * <p>If <code>null</code>, we will just assume the required commands are on the PATH.</p>
          */
         public String androidHome;
+        /**
+         * The build-tools revision to run <tt>aapt</tt> from, e.g. <tt>21.1.2</tt>. The newest one is used if empty.
+         */
+        public String buildToolsVersion;
+        /**
+         * Whether all builds share one connection to the farm, which the farm has to support by echoing request ids.
+         */
+        public boolean sharedSession;
         private String deviceApiUrl;
 
         public DescriptorImpl() {
@@ -209,6 +827,17 @@ public class AndroidRemote extends BuildWrapper {
             load();
         }
 
+        public String getBuildToolsVersion() {
+            return Util.fixEmptyAndTrim(buildToolsVersion);
+        }
+
+        /**
+         * @return A new handle on the device farm for one reservation.
+         */
+        public DeviceFarmApi newApi() {
+            return sharedSession ? new SharedDeviceFarmApi() : new DeviceFarmApiImpl();
+        }
+
         @Override
         public String getDisplayName() {
             return Messages.JOB_DESCRIPTION();
@@ -216,9 +845,16 @@ public class AndroidRemote extends BuildWrapper {
 
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            String previousApiUrl = deviceApiUrl;
             deviceApiUrl = json.optString("deviceApiUrl");
             androidHome = json.optString("androidSdkHome");
+            buildToolsVersion = Util.fixEmptyAndTrim(json.optString("buildToolsVersion"));
+            sharedSession = json.optBoolean("sharedSession");
             save();
+            if (previousApiUrl != null && !previousApiUrl.equals(deviceApiUrl)) {
+                // builds no longer reserve over the old farm's shared connection, once the running ones are done with it
+                SharedDeviceFarmApi.closeSessionWhenIdle(previousApiUrl);
+            }
             return true;
         }
 
@@ -232,8 +868,20 @@ public class AndroidRemote extends BuildWrapper {
                 deviceApiUrl = this.deviceApiUrl;
             }
             tag = formData.optString("tag");
-
-            return new AndroidRemote(deviceApiUrl, tag);
+            int deviceCount = formData.optInt("deviceCount", 1);
+            boolean queued = formData.optBoolean("queued");
+            int priority = formData.optInt("priority", ReservationRequest.DEFAULT_PRIORITY);
+            int maxWaitMinutes = formData.optInt("maxWaitMinutes", 0);
+            int leaseIdleSeconds = formData.optInt("leaseIdleSeconds", 0);
+            int screenshotMaxWidth = formData.optInt("screenshotMaxWidth", 0);
+            int timelineIntervalSeconds = formData.optInt("timelineIntervalSeconds", 0);
+            String logcatFilter = formData.optString("logcatFilter");
+            boolean preflight = formData.optBoolean("preflight");
+            int minFreeStorageMb = formData.optInt("minFreeStorageMb", 0);
+            int minBatteryPercent = formData.optInt("minBatteryPercent", 0);
+
+            return new AndroidRemote(deviceApiUrl, tag, deviceCount, queued, priority, maxWaitMinutes, leaseIdleSeconds,
+                    screenshotMaxWidth, timelineIntervalSeconds, logcatFilter, preflight, minFreeStorageMb, minBatteryPercent);
         }
 
         @Override
@@ -0,0 +1,54 @@
+package org.jenkinsci.plugins.android_device;
+
+import org.jenkinsci.plugins.android_device.adb.DeviceFile;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * What the plugin sent to each farm device, by remote path, kept across builds so that unchanged content is not sent again.
+ * <p>
+ * Devices are known by the address the farm reported for them. An entry is only trusted while the device still
+ * reports the size and modification time it had right after the transfer, so a reflashed or reassigned device
+ * simply gets the whole content again.
+ */
+public class DeviceManifest {
+    private static final ConcurrentMap<String, DeviceManifest> MANIFESTS = new ConcurrentHashMap<String, DeviceManifest>();
+
+    /**
+     * Key of installed packages, which are tracked next to pushed files.
+     */
+    static final String PACKAGE_PREFIX = "package:";
+
+    private final ConcurrentMap<String, DeviceFile> files = new ConcurrentHashMap<String, DeviceFile>();
+
+    /**
+     * @param serial <tt>ip:port</tt> of the device as reported by the farm.
+     */
+    static DeviceManifest of(String serial) {
+        DeviceManifest manifest = MANIFESTS.get(serial);
+        if (manifest == null) {
+            DeviceManifest created = new DeviceManifest();
+            manifest = MANIFESTS.putIfAbsent(serial, created);
+            if (manifest == null) {
+                manifest = created;
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * @return What was last sent to the path, or <code>null</code>.
+     */
+    public DeviceFile get(String remotePath) {
+        return files.get(remotePath);
+    }
+
+    void put(String remotePath, DeviceFile file) {
+        files.put(remotePath, file);
+    }
+
+    void remove(String remotePath) {
+        files.remove(remotePath);
+    }
+}
@@ -0,0 +1,138 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.android_device.util.LatencyHistogram;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stage latencies and acquisition counters of every build since Jenkins started, by tag and by device farm.
+ * <p>
+ * Served as JSON from <tt>/android-device-metrics/</tt>, e.g.
+ * <tt>{"histograms":{"acquisition":{"tag":{"nexus5":{"count":12,"p50":9215,...}},"farm":{...}}},"counters":{...}}</tt>.
+ */
+@Extension
+public class DeviceMetrics implements RootAction {
+    static final String DIMENSION_TAG = "tag";
+    static final String DIMENSION_FARM = "farm";
+
+    static final String ACQUIRED = "acquired";
+    static final String WARM_REUSE = "warm reuse";
+    static final String FAILED_CONNECT = "failed connect";
+    static final String FAILED_RESPONSE = "failed response";
+    static final String FAILED_TIMEOUT = "failed timeout";
+    static final String FAILED_NO_DEVICE = "failed no device";
+    static final String UNHEALTHY = "unhealthy";
+    static final String RETRIED = "retried";
+
+    /**
+     * Keyed by <tt>name|dimension|value</tt>.
+     */
+    private static final ConcurrentMap<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<String, LatencyHistogram>();
+    private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+
+    static void recordStage(String stage, String tag, String farm, long millis) {
+        histogram(key(stage, DIMENSION_TAG, tag)).record(millis);
+        histogram(key(stage, DIMENSION_FARM, farm)).record(millis);
+    }
+
+    static void count(String event, String tag, String farm) {
+        counter(key(event, DIMENSION_TAG, tag)).incrementAndGet();
+        counter(key(event, DIMENSION_FARM, farm)).incrementAndGet();
+    }
+
+    static LatencyHistogram histogram(String key) {
+        LatencyHistogram histogram = HISTOGRAMS.get(key);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = HISTOGRAMS.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private static AtomicLong counter(String key) {
+        AtomicLong counter = COUNTERS.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = COUNTERS.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    static String key(String name, String dimension, String value) {
+        return name + '|' + dimension + '|' + (value == null ? "" : value);
+    }
+
+    static JSONObject toJson() {
+        Map<String, Map<String, Map<String, Object>>> histograms = new TreeMap<String, Map<String, Map<String, Object>>>();
+        for (Map.Entry<String, LatencyHistogram> entry : HISTOGRAMS.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            JSONObject summary = new JSONObject();
+            summary.put("count", histogram.getCount());
+            summary.put("mean", histogram.getMean());
+            summary.put("p50", histogram.getPercentile(0.5));
+            summary.put("p90", histogram.getPercentile(0.9));
+            summary.put("p99", histogram.getPercentile(0.99));
+            summary.put("max", histogram.getMax());
+            put(histograms, entry.getKey(), summary);
+        }
+        Map<String, Map<String, Map<String, Object>>> counters = new TreeMap<String, Map<String, Map<String, Object>>>();
+        for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+            put(counters, entry.getKey(), entry.getValue().get());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("histograms", histograms);
+        json.put("counters", counters);
+        return json;
+    }
+
+    private static void put(Map<String, Map<String, Map<String, Object>>> tree, String key, Object value) {
+        String[] parts = key.split("\\|", 3);
+        Map<String, Map<String, Object>> dimensions = tree.get(parts[0]);
+        if (dimensions == null) {
+            dimensions = new TreeMap<String, Map<String, Object>>();
+            tree.put(parts[0], dimensions);
+        }
+        Map<String, Object> values = dimensions.get(parts[1]);
+        if (values == null) {
+            values = new TreeMap<String, Object>();
+            dimensions.put(parts[1], values);
+        }
+        values.put(parts[2], value);
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Hudson.getInstance().checkPermission(Hudson.READ);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(toJson().toString(2));
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.DEVICE_METRICS();
+    }
+
+    public String getUrlName() {
+        return "android-device-metrics";
+    }
+}
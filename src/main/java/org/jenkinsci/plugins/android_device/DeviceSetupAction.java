@@ -0,0 +1,60 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * How long each device setup and teardown stage of a build took, shown on the build page.
+ */
+public class DeviceSetupAction implements Action {
+    private final List<Stage> stages = new ArrayList<Stage>();
+
+    public static class Stage {
+        private final String name;
+        private final String device;
+        private final long millis;
+
+        Stage(String name, String device, long millis) {
+            this.name = name;
+            this.device = device;
+            this.millis = millis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return Serial of the device the stage ran for, or <code>null</code> for stages of the whole build.
+         */
+        public String getDevice() {
+            return device;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+    }
+
+    synchronized void add(String name, String device, long millis) {
+        stages.add(new Stage(name, device, millis));
+    }
+
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<Stage>(stages);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return Messages.DEVICE_SETUP_SUMMARY();
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,31 @@
+package org.jenkinsci.plugins.android_device;
+
+/**
+ * One of the devices reserved for a build, with what was started on it.
+ */
+class DeviceShard {
+    final int index;
+    final AndroidDeviceContext device;
+    LogcatCollector logcatCollector;
+    ScreenTimeline timeline;
+
+    DeviceShard(int index, AndroidDeviceContext device) {
+        this.index = index;
+        this.device = device;
+    }
+
+    /**
+     * Names per-device artifacts so that the first device keeps the single-device names,
+     * e.g. <tt>logcat.txt</tt>, <tt>logcat-1.txt</tt>, <tt>logcat-2.txt</tt>.
+     */
+    String artifactName(String fileName) {
+        if (index == 0) {
+            return fileName;
+        }
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return fileName + "-" + index;
+        }
+        return fileName.substring(0, dot) + "-" + index + fileName.substring(dot);
+    }
+}
@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins.android_device;
+
+import net.sf.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What the pre-flight probes found out about a device before a build gets it.
+ * <p>
+ * All probes run at once in a single shell, each writing to its own file, and the files are printed one section
+ * after the other so that the output does not interleave. Only commands found on old toolbox devices are used.
+ */
+class HealthReport {
+    static final String SCRIPT = "d=/data/local/tmp/preflight.$$; mkdir -p $d; "
+            + "(df /data > $d/storage 2>&1) & "
+            + "(dumpsys battery > $d/battery 2>&1) & "
+            + "(pm path android > $d/pm 2>&1) & "
+            + "(getprop sys.boot_completed > $d/boot 2>&1) & "
+            + "(dumpsys power > $d/screen 2>&1) & "
+            + "wait; for p in storage battery pm boot screen; do echo \"[$p]\"; cat $d/$p; done; rm -r $d";
+
+    private static final Pattern SECTION = Pattern.compile("^\\[(\\w+)\\]$");
+    private static final Pattern SIZE = Pattern.compile("([0-9.]+)([KMGT]?)");
+    /**
+     * Toolbox <tt>df</tt> before Android 4.0, e.g. <tt>/data: 1024000K total, 500000K used, 524000K available (block size 4096)</tt>.
+     */
+    private static final Pattern OLD_DF = Pattern.compile("([0-9.]+[KMGT]?) available");
+    private static final Pattern BATTERY_LEVEL = Pattern.compile("level:\\s*(\\d+)");
+    private static final Pattern SCREEN_ON = Pattern.compile("mScreenOn=(\\w+)|Display Power: state=(\\w+)|mWakefulness=(\\w+)");
+
+    /**
+     * Free space on <tt>/data</tt> in KB, or -1 if unknown.
+     */
+    final long freeStorageKb;
+    /**
+     * Battery level in percent, or -1 if unknown.
+     */
+    final int batteryLevel;
+    final boolean packageManager;
+    final boolean bootCompleted;
+    /**
+     * Whether the screen is on, or {@code null} if unknown.
+     */
+    final Boolean screenOn;
+
+    HealthReport(long freeStorageKb, int batteryLevel, boolean packageManager, boolean bootCompleted, Boolean screenOn) {
+        this.freeStorageKb = freeStorageKb;
+        this.batteryLevel = batteryLevel;
+        this.packageManager = packageManager;
+        this.bootCompleted = bootCompleted;
+        this.screenOn = screenOn;
+    }
+
+    /**
+     * Parses what {@link #SCRIPT} printed. Probes which did not answer, e.g. because the shell timed out, count as failed.
+     */
+    static HealthReport parse(String output) {
+        Map<String, String> sections = new HashMap<String, String>();
+        String section = null;
+        StringBuilder content = new StringBuilder();
+        for (String line : output.split("\r?\n")) {
+            Matcher matcher = SECTION.matcher(line.trim());
+            if (matcher.matches()) {
+                if (section != null) {
+                    sections.put(section, content.toString());
+                }
+                section = matcher.group(1);
+                content.setLength(0);
+            } else {
+                content.append(line).append('\n');
+            }
+        }
+        if (section != null) {
+            sections.put(section, content.toString());
+        }
+
+        String pm = sections.get("pm");
+        String boot = sections.get("boot");
+        return new HealthReport(parseFreeStorageKb(sections.get("storage")), parseBatteryLevel(sections.get("battery")),
+                pm != null && pm.contains("package:"), boot != null && boot.trim().equals("1"),
+                parseScreenOn(sections.get("screen")));
+    }
+
+    static long parseFreeStorageKb(String df) {
+        if (df == null) {
+            return -1;
+        }
+        Matcher old = OLD_DF.matcher(df);
+        if (old.find()) {
+            return toKb(old.group(1));
+        }
+        // the last line is /data, the fourth column is what is free in both toolbox and toybox
+        String[] lines = df.trim().split("\n");
+        String[] columns = lines[lines.length - 1].trim().split("\\s+");
+        if (columns.length < 4) {
+            return -1;
+        }
+        return toKb(columns[3]);
+    }
+
+    /**
+     * @return Size in KB, given in KB without a unit or with a K, M, G or T suffix.
+     */
+    private static long toKb(String size) {
+        Matcher matcher = SIZE.matcher(size);
+        if (!matcher.matches()) {
+            return -1;
+        }
+        double value = Double.parseDouble(matcher.group(1));
+        String unit = matcher.group(2);
+        if (unit.equals("M")) {
+            value *= 1024;
+        } else if (unit.equals("G")) {
+            value *= 1024 * 1024;
+        } else if (unit.equals("T")) {
+            value *= 1024 * 1024 * 1024;
+        }
+        return (long) value;
+    }
+
+    static int parseBatteryLevel(String battery) {
+        if (battery == null) {
+            return -1;
+        }
+        Matcher matcher = BATTERY_LEVEL.matcher(battery);
+        return matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    static Boolean parseScreenOn(String power) {
+        if (power == null) {
+            return null;
+        }
+        Matcher matcher = SCREEN_ON.matcher(power);
+        if (!matcher.find()) {
+            return null;
+        }
+        String state = matcher.group(1) != null ? matcher.group(1) : matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+        return state.equalsIgnoreCase("true") || state.equalsIgnoreCase("ON") || state.equalsIgnoreCase("Awake");
+    }
+
+    /**
+     * @param minFreeStorageMb  Free storage required on <tt>/data</tt>, or 0 not to check it.
+     * @param minBatteryPercent Battery level required, or 0 not to check it.
+     * @return Why the device should not be used, empty if it is fine. Probes which could not tell are not held against it.
+     */
+    List<String> problems(int minFreeStorageMb, int minBatteryPercent) {
+        List<String> problems = new ArrayList<String>();
+        if (!bootCompleted) {
+            problems.add(Messages.HEALTH_NOT_BOOTED());
+        }
+        if (!packageManager) {
+            problems.add(Messages.HEALTH_PM_UNRESPONSIVE());
+        }
+        if (minFreeStorageMb > 0 && freeStorageKb >= 0 && freeStorageKb < minFreeStorageMb * 1024L) {
+            problems.add(Messages.HEALTH_LOW_STORAGE(freeStorageKb / 1024));
+        }
+        if (minBatteryPercent > 0 && batteryLevel >= 0 && batteryLevel < minBatteryPercent) {
+            problems.add(Messages.HEALTH_LOW_BATTERY(batteryLevel));
+        }
+        return problems;
+    }
+
+    /**
+     * @return The probe results as reported to the device farm.
+     */
+    JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("storage_free_kb", freeStorageKb);
+        json.put("battery", batteryLevel);
+        json.put("pm", packageManager);
+        json.put("boot_completed", bootCompleted);
+        if (screenOn != null) {
+            json.put("screen_on", screenOn);
+        }
+        return json;
+    }
+}
@@ -1,56 +1,91 @@
 package org.jenkinsci.plugins.android_device;
 
-import hudson.FilePath;
 import hudson.Proc;
 import hudson.model.AbstractBuild;
-import org.jenkinsci.plugins.android_device.util.Utils;
+import org.jenkinsci.plugins.android_device.util.ActivityOutputStream;
+import org.jenkinsci.plugins.android_device.util.LogcatParser;
+import org.jenkinsci.plugins.android_device.util.ProcessReaper;
+import org.jenkinsci.plugins.android_device.util.RotatingGzipOutputStream;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.util.logging.Logger;
 
 /**
 * Created by skyisle on 08/29/2014.
 */
 class LogcatCollector {
+    private static final Logger LOGGER = Logger.getLogger(LogcatCollector.class.getName());
+    /**
+     * Uncompressed size of each archived logcat chunk.
+     */
+    static final long MAX_CHUNK_BYTES = 64 * 1024 * 1024;
+    /**
+     * logcat is considered drained once it wrote nothing for this long.
+     */
+    static final int DRAIN_QUIET_MS = 250;
+    /**
+     * Upper bound for draining a device which keeps logging.
+     */
+    static final int DRAIN_TIMEOUT_MS = 2000;
+
     private AbstractBuild build;
     private AndroidDeviceContext device;
-    private FilePath logcatFile;
-    private OutputStream logcatStream;
+    private String artifactName;
+    private String crashArtifactName;
+    private String filter;
+    private LogcatParser logcatStream;
+    private ActivityOutputStream activity;
     private Proc logcatProcess;
 
-    public LogcatCollector(AbstractBuild build, AndroidDeviceContext device) {
+    public LogcatCollector(AbstractBuild build, AndroidDeviceContext device, String artifactName) {
+        this(build, device, artifactName, null, null);
+    }
+
+    /**
+     * @param filter            logcat filterspec for the archived log, or <code>null</code> to archive everything.
+     * @param crashArtifactName Where to extract crashes and ANRs to, or <code>null</code> to skip that.
+     */
+    public LogcatCollector(AbstractBuild build, AndroidDeviceContext device, String artifactName, String filter,
+                           String crashArtifactName) {
         this.build = build;
         this.device = device;
+        this.artifactName = artifactName;
+        this.filter = filter;
+        this.crashArtifactName = crashArtifactName;
     }
 
+    /**
+     * Starts streaming logcat, filtered and compressed, straight into the artifacts directory of the build.
+     * Crashes are extracted into their own artifact as they are logged.
+     */
     public void start() throws IOException, InterruptedException {
-        logcatFile = build.getWorkspace().createTextTempFile("logcat_", ".log", "", false);
-        logcatStream = logcatFile.write();
-        logcatProcess = device.startLogcatProc(logcatStream);
+        File artifactsDir = build.getArtifactsDir();
+        if (!artifactsDir.isDirectory() && !artifactsDir.mkdirs()) {
+            throw new IOException("Failed to create " + artifactsDir);
+        }
+        File crashFile = crashArtifactName == null ? null : new File(artifactsDir, crashArtifactName);
+        logcatStream = new LogcatParser(new RotatingGzipOutputStream(artifactsDir, artifactName, MAX_CHUNK_BYTES),
+                filter, crashFile);
+        activity = new ActivityOutputStream(logcatStream);
+        logcatProcess = device.startLogcatProc(activity);
     }
 
-    public void saveToFile(int kill_process_time_out_in_ms, String saveFileName) throws IOException, InterruptedException {
+    public void saveToFile(int kill_process_time_out_in_ms) throws IOException, InterruptedException {
         if (logcatProcess != null) {
             if (logcatProcess.isAlive()) {
-                // This should have stopped when the emulator was,
-                // but if not attempt to kill the process manually.
-                // First, give it a final chance to finish cleanly.
-                Thread.sleep(3 * 1000);
-                if (logcatProcess.isAlive()) {
-                    Utils.killProcess(logcatProcess, kill_process_time_out_in_ms);
-                }
+                // logcat runs as long as the device stays connected, so let the tail of the log land and stop it
+                activity.awaitQuiet(DRAIN_QUIET_MS, DRAIN_TIMEOUT_MS);
+                Integer status = ProcessReaper.get().terminate(logcatProcess, kill_process_time_out_in_ms);
+                LOGGER.fine("logcat of " + device.serial() + " exited with " + status);
+                // output of the agent may still be on its way over the channel
+                activity.awaitQuiet(DRAIN_QUIET_MS, DRAIN_QUIET_MS * 2);
             }
             try {
+                // the logs are already archived, this only finishes the last chunk
                 logcatStream.close();
             } catch (Exception ignore) {
             }
-
-            // Archive the logs
-            if (logcatFile.length() != 0) {
-                logcatFile.copyTo(new FilePath(build.getArtifactsDir()).child(saveFileName));
-            }
-            logcatFile.delete();
         }
     }
 
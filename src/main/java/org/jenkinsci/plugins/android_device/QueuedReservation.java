@@ -0,0 +1,301 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.Extension;
+import hudson.model.*;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.util.NullStream;
+import org.jenkinsci.plugins.android_device.api.DeviceFarmApi;
+import org.jenkinsci.plugins.android_device.api.DeviceFarmApiImpl;
+import org.jenkinsci.plugins.android_device.api.MalformedResponseException;
+import org.jenkinsci.plugins.android_device.api.NoDeviceAvailableException;
+import org.jenkinsci.plugins.android_device.api.ReservationRequest;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * A farm reservation made while the build still waits in the Jenkins queue, so that no executor is held
+ * while the farm looks for devices. It moves from the queue item to the build like any other queue action.
+ * <p>
+ * The request itself is saved with the queue; a restarted controller asks the farm again for the items it reloads,
+ * since the farm drops the devices of a session which went away.
+ */
+public class QueuedReservation extends InvisibleAction {
+    private static final Logger LOGGER = Logger.getLogger(QueuedReservation.class.getName());
+    private static final PrintStream NO_LOG = new PrintStream(new NullStream());
+
+    /**
+     * Reservations which no build has claimed yet, checked by the {@link Sweeper}.
+     */
+    private static final Set<QueuedReservation> PENDING = new HashSet<QueuedReservation>();
+
+    final String deviceApiUrl;
+    final String tag;
+    final String jobId;
+    final int deviceCount;
+    final int priority;
+    final int waitTimeoutMs;
+
+    private transient DeviceFarmApi api;
+    private transient List<RemoteDevice> devices;
+    private transient Exception failure;
+    private transient long started;
+    private transient boolean claimed;
+    private transient boolean building;
+    private transient int missedSweeps;
+
+    QueuedReservation(String deviceApiUrl, String tag, String jobId, int deviceCount, int priority, int waitTimeoutMs) {
+        this.deviceApiUrl = deviceApiUrl;
+        this.tag = tag;
+        this.jobId = jobId;
+        this.deviceCount = deviceCount;
+        this.priority = priority;
+        this.waitTimeoutMs = waitTimeoutMs;
+    }
+
+    /**
+     * Sends the request to the farm over the given session.
+     */
+    synchronized void start(DeviceFarmApi api) {
+        this.api = api;
+        devices = new ArrayList<RemoteDevice>();
+        failure = null;
+        started = System.currentTimeMillis();
+        synchronized (PENDING) {
+            PENDING.add(this);
+        }
+        try {
+            ReservationRequest request = new ReservationRequest(tag, jobId, deviceCount, true, priority, waitTimeoutMs / 1000);
+            api.connectApiServer(NO_LOG, deviceApiUrl, request, DeviceFarmApiImpl.DEFAULT_CONNECT_TIMEOUT);
+        } catch (FailedToConnectApiServerException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Collects what the farm answered so far without waiting, asking it first if nobody did since the controller started.
+     *
+     * @return Whether the reservation is settled, with all devices reserved or with a failure.
+     */
+    synchronized boolean poll() {
+        if (claimed) {
+            return true;
+        }
+        if (api == null) {
+            start(Hudson.getInstance().getDescriptorByType(AndroidRemote.DescriptorImpl.class).newApi());
+        }
+        if (failure != null) {
+            return true;
+        }
+        try {
+            RemoteDevice device;
+            while (devices.size() < deviceCount && (device = api.pollApiResponse(NO_LOG)) != null) {
+                devices.add(device);
+            }
+            if (devices.size() < deviceCount) {
+                if (System.currentTimeMillis() - started < waitTimeoutMs) {
+                    return false;
+                }
+                fail(new TimeoutException());
+            }
+        } catch (FailedToConnectApiServerException e) {
+            fail(e);
+        } catch (MalformedResponseException e) {
+            fail(e);
+        } catch (NoDeviceAvailableException e) {
+            fail(e);
+        }
+        return true;
+    }
+
+    private void fail(Exception e) {
+        failure = e;
+        api.disconnect();
+        synchronized (PENDING) {
+            PENDING.remove(this);
+        }
+    }
+
+    /**
+     * @return Whether the reservation was made for the given configuration of the build wrapper.
+     */
+    boolean matches(String deviceApiUrl, String tag, int deviceCount) {
+        return this.deviceApiUrl.equals(deviceApiUrl) && this.tag.equals(tag) && this.deviceCount == deviceCount;
+    }
+
+    /**
+     * Hands the reserved devices over to the build, which disconnects {@link #getApi()} once done with them.
+     *
+     * @return The reserved devices, or {@code null} if the reservation was not settled.
+     */
+    synchronized List<RemoteDevice> claim() throws FailedToConnectApiServerException, MalformedResponseException, TimeoutException, NoDeviceAvailableException {
+        if (api == null || (failure == null && devices.size() < deviceCount)) {
+            release();
+            return null;
+        }
+        claimed = true;
+        synchronized (PENDING) {
+            PENDING.remove(this);
+        }
+        if (failure instanceof FailedToConnectApiServerException) {
+            throw (FailedToConnectApiServerException) failure;
+        }
+        if (failure instanceof MalformedResponseException) {
+            throw (MalformedResponseException) failure;
+        }
+        if (failure instanceof TimeoutException) {
+            throw (TimeoutException) failure;
+        }
+        if (failure instanceof NoDeviceAvailableException) {
+            throw (NoDeviceAvailableException) failure;
+        }
+        return devices;
+    }
+
+    synchronized DeviceFarmApi getApi() {
+        return api;
+    }
+
+    /**
+     * @return When the farm was asked.
+     */
+    synchronized long getStarted() {
+        return started;
+    }
+
+    synchronized int getQueuePosition() {
+        return api != null ? api.getQueuePosition() : -1;
+    }
+
+    /**
+     * Gives the devices back to the farm unless a build claimed them.
+     */
+    synchronized void release() {
+        if (claimed) {
+            return;
+        }
+        claimed = true;
+        synchronized (PENDING) {
+            PENDING.remove(this);
+        }
+        if (api != null) {
+            api.disconnect();
+        }
+    }
+
+    /**
+     * Keeps queued builds of jobs with a queued device request blocked until the farm reserved their devices.
+     */
+    @Extension
+    public static class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            if (!(item.task instanceof BuildableItemWithBuildWrappers)) {
+                return null;
+            }
+            BuildableItemWithBuildWrappers project = (BuildableItemWithBuildWrappers) item.task;
+            AndroidRemote wrapper = project.getBuildWrappersList().get(AndroidRemote.class);
+            if (wrapper == null) {
+                return null;
+            }
+            QueuedReservation reservation = item.getAction(QueuedReservation.class);
+            if (reservation == null) {
+                reservation = wrapper.reserveWhileQueued(project.asProject(), item.id, item.getAction(ParametersAction.class));
+                if (reservation == null) {
+                    return null;
+                }
+                item.addAction(reservation);
+            }
+            return blockage(reservation);
+        }
+
+        /**
+         * @return Why the item still waits, or {@code null} once the farm settled its reservation.
+         */
+        static CauseOfBlockage blockage(QueuedReservation reservation) {
+            if (reservation.poll()) {
+                return null;
+            }
+            return CauseOfBlockage.fromMessage(Messages._WAITING_FOR_DEVICE_IN_QUEUE(reservation.tag, reservation.getQueuePosition()));
+        }
+    }
+
+    /**
+     * Marks reservations taken over by a build, and releases those the build never got to claim.
+     */
+    @Extension
+    public static class Tracker extends RunListener<AbstractBuild> {
+        public Tracker() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(AbstractBuild build, TaskListener listener) {
+            QueuedReservation reservation = build.getAction(QueuedReservation.class);
+            if (reservation != null) {
+                synchronized (reservation) {
+                    reservation.building = true;
+                }
+            }
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            QueuedReservation reservation = build.getAction(QueuedReservation.class);
+            if (reservation != null) {
+                reservation.release();
+            }
+        }
+    }
+
+    /**
+     * Releases reservations whose queue item was cancelled. An item leaving the queue for an executor
+     * is only released if its build has not started by the next sweep.
+     */
+    @Extension
+    public static class Sweeper extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            Set<QueuedReservation> queued = new HashSet<QueuedReservation>();
+            for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+                QueuedReservation reservation = item.getAction(QueuedReservation.class);
+                if (reservation != null) {
+                    queued.add(reservation);
+                }
+            }
+            sweep(queued);
+        }
+
+        /**
+         * @param queued The reservations of the items still in the queue.
+         */
+        void sweep(Set<QueuedReservation> queued) {
+            List<QueuedReservation> pending;
+            synchronized (PENDING) {
+                pending = new ArrayList<QueuedReservation>(PENDING);
+            }
+            for (QueuedReservation reservation : pending) {
+                boolean orphaned;
+                synchronized (reservation) {
+                    orphaned = !queued.contains(reservation) && !reservation.building && reservation.missedSweeps++ > 0;
+                }
+                if (orphaned) {
+                    LOGGER.fine("Releasing the devices reserved for " + reservation.jobId + " which left the queue");
+                    reservation.release();
+                }
+            }
+        }
+    }
+}
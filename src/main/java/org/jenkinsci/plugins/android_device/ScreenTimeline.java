@@ -0,0 +1,140 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.util.DaemonThreadFactory;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Takes screenshots of a device at a fixed interval while the build runs and archives them as one zip.
+ * <p>
+ * Identical frames are stored once; <tt>timeline.txt</tt> in the zip lists when the screen changed
+ * and which frame it showed, as <tt>milliseconds since start&lt;TAB&gt;frame</tt>.
+ */
+class ScreenTimeline {
+    private static final Logger LOGGER = Logger.getLogger(ScreenTimeline.class.getName());
+    private static final int CAPTURE_TIMEOUT_MS = 10000;
+    static final String INDEX_ENTRY = "timeline.txt";
+
+    /**
+     * Shared by all builds so that sampling never takes more than a couple of threads.
+     */
+    private static final ScheduledExecutorService SAMPLER = new ScheduledThreadPoolExecutor(2, new DaemonThreadFactory());
+
+    private final AndroidDeviceContext device;
+    private final File file;
+    private final int maxWidth;
+    private final Map<String, String> frames = new HashMap<String, String>();
+    private final StringBuilder index = new StringBuilder();
+    private ZipOutputStream zip;
+    private String lastHash;
+    private long start;
+    private ScheduledFuture<?> task;
+
+    ScreenTimeline(AndroidDeviceContext device, File file, int maxWidth) {
+        this.device = device;
+        this.file = file;
+        this.maxWidth = maxWidth;
+    }
+
+    void start(int intervalSeconds) throws IOException {
+        zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        // PNG frames do not compress any further
+        zip.setLevel(Deflater.NO_COMPRESSION);
+        start = System.currentTimeMillis();
+        // with a fixed delay a slow capture pushes the next one back instead of piling up on the adb link
+        task = SAMPLER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                capture();
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    synchronized void capture() {
+        if (zip == null) {
+            return;
+        }
+        try {
+            long elapsed = System.currentTimeMillis() - start;
+            ByteArrayOutputStream image = new ByteArrayOutputStream();
+            device.screenshot(image, maxWidth, CAPTURE_TIMEOUT_MS);
+            if (image.size() == 0) {
+                return;
+            }
+            byte[] frame = image.toByteArray();
+            String hash = hash(frame);
+            if (hash.equals(lastHash)) {
+                return;
+            }
+            lastHash = hash;
+
+            String name = frames.get(hash);
+            if (name == null) {
+                name = String.format("frame-%05d.png", frames.size());
+                frames.put(hash, name);
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(frame);
+                zip.closeEntry();
+            }
+            index.append(elapsed).append('\t').append(name).append('\n');
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to capture " + device.serial(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops sampling and finishes the zip, waiting for a capture in progress.
+     * No file is left when not a single frame was captured.
+     */
+    void stop() throws IOException {
+        if (task != null) {
+            task.cancel(false);
+        }
+        synchronized (this) {
+            if (zip == null) {
+                return;
+            }
+            try {
+                if (!frames.isEmpty()) {
+                    zip.setLevel(Deflater.DEFAULT_COMPRESSION);
+                    zip.putNextEntry(new ZipEntry(INDEX_ENTRY));
+                    zip.write(index.toString().getBytes("UTF-8"));
+                    zip.closeEntry();
+                }
+            } finally {
+                try {
+                    zip.close();
+                } catch (IOException ignore) {
+                    // a zip without entries can not be finished
+                }
+                zip = null;
+            }
+            if (frames.isEmpty()) {
+                file.delete();
+            }
+        }
+    }
+
+    private static String hash(byte[] data) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("SHA-1").digest(data)).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
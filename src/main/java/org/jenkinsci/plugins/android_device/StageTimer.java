@@ -0,0 +1,59 @@
+package org.jenkinsci.plugins.android_device;
+
+import java.io.PrintStream;
+
+/**
+ * Times the device stages of one build.
+ * Each stage is logged, added to the build's {@link DeviceSetupAction} and recorded in {@link DeviceMetrics}.
+ */
+class StageTimer {
+    static final String API_CONNECT = "api connect";
+    static final String RESERVATION_WAIT = "reservation wait";
+    static final String SDK_DISCOVERY = "sdk discovery";
+    static final String DEVICE_PREPARATION = "device preparation";
+    static final String HEALTH_PROBE = "health probe";
+    static final String ADB_CONNECT = "adb connect";
+    static final String WAIT_READY = "wait ready";
+    static final String PREFLIGHT = "preflight";
+    static final String UNLOCK = "unlock";
+    static final String LOGCAT_START = "logcat start";
+    /**
+     * From the start of the setup until every device is ready for the build.
+     */
+    static final String ACQUISITION = "acquisition";
+    static final String TIMELINE_STOP = "timeline stop";
+    static final String LOGCAT_SAVE = "logcat save";
+    static final String SCREENSHOT = "screenshot";
+    static final String ADB_DISCONNECT = "adb disconnect";
+    static final String FARM_RELEASE = "farm release";
+
+    private final PrintStream logger;
+    private final DeviceSetupAction action;
+    private final String tag;
+    private final String farm;
+
+    StageTimer(PrintStream logger, DeviceSetupAction action, String tag, String farm) {
+        this.logger = logger;
+        this.action = action;
+        this.tag = tag;
+        this.farm = farm;
+    }
+
+    /**
+     * @param device Serial of the device the stage ran for, or <code>null</code>.
+     */
+    void finished(String stage, String device, long start) {
+        long millis = System.currentTimeMillis() - start;
+        AndroidRemote.log(logger, Messages.STAGE_FINISHED(device == null ? stage : stage + " (" + device + ")", millis));
+        action.add(stage, device, millis);
+        DeviceMetrics.recordStage(stage, tag, farm, millis);
+    }
+
+    void count(String event) {
+        DeviceMetrics.count(event, tag, farm);
+    }
+
+    PrintStream getLogger() {
+        return logger;
+    }
+}
@@ -0,0 +1,26 @@
+package org.jenkinsci.plugins.android_device;
+
+import com.google.common.base.Joiner;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A reserved device could not be prepared for the build, or failed the pre-flight probes,
+ * and should be given back for another one.
+ */
+class UnhealthyDeviceException extends IOException {
+    final String serial;
+
+    UnhealthyDeviceException(String serial, List<String> problems) {
+        super(serial + ": " + Joiner.on(", ").join(problems));
+        this.serial = serial;
+    }
+
+    UnhealthyDeviceException(String serial, Throwable cause) {
+        super(serial + ": " + (cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName()), cause);
+        this.serial = serial;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
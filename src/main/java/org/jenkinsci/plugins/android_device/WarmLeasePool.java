@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.Launcher;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import org.jenkinsci.plugins.android_device.adb.AdbCallables;
+import org.jenkinsci.plugins.android_device.api.DeviceFarmApi;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the farm reservation and adb connection of a finished build for a while,
+ * so that the next build of the same job on the same node can take them over.
+ */
+class WarmLeasePool {
+    private static final Logger LOGGER = Logger.getLogger(WarmLeasePool.class.getName());
+    private static final int DISCONNECT_TIMEOUT_MS = 15000;
+    private static final WarmLeasePool INSTANCE = new WarmLeasePool();
+
+    private final Map<String, WarmLease> leases = new HashMap<String, WarmLease>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    static WarmLeasePool get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return The key the devices of a job on a node are parked under.
+     */
+    static String key(String job, String node, String tag, int count) {
+        return job + "@" + node + "#" + tag + "x" + count;
+    }
+
+    /**
+     * Devices reserved and connected by a finished build.
+     */
+    static class WarmLease {
+        final DeviceFarmApi api;
+        final List<RemoteDevice> devices;
+        final Launcher launcher;
+        private ScheduledFuture<?> expiry;
+
+        WarmLease(DeviceFarmApi api, List<RemoteDevice> devices, Launcher launcher) {
+            this.api = api;
+            this.devices = devices;
+            this.launcher = launcher;
+        }
+
+        /**
+         * Disconnects the devices from adb and gives them back to the farm.
+         */
+        void release() {
+            VirtualChannel channel = launcher.getChannel();
+            for (RemoteDevice device : devices) {
+                String serial = String.format("%s:%d", device.ip, device.port);
+                try {
+                    if (channel != null) {
+                        channel.call(AdbCallables.hostRequest("host:disconnect:" + serial, DISCONNECT_TIMEOUT_MS));
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to disconnect " + serial, e);
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.FINE, "Failed to disconnect " + serial, e);
+                }
+            }
+            api.disconnect();
+        }
+    }
+
+    /**
+     * Parks a lease until the next build asks for it, releasing it after {@code idleSeconds}.
+     * A lease already parked under the same key is released, outside of the pool's lock.
+     */
+    void park(final String key, final WarmLease lease, int idleSeconds) {
+        WarmLease previous;
+        synchronized (this) {
+            previous = leases.put(key, lease);
+            if (previous != null) {
+                previous.expiry.cancel(false);
+            }
+            lease.expiry = timer.schedule(new Runnable() {
+                public void run() {
+                    if (remove(key, lease)) {
+                        lease.release();
+                    }
+                }
+            }, idleSeconds, TimeUnit.SECONDS);
+        }
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * @return The lease parked under the key, now owned by the caller, or {@code null}.
+     */
+    synchronized WarmLease take(String key) {
+        WarmLease lease = leases.remove(key);
+        if (lease != null) {
+            lease.expiry.cancel(false);
+        }
+        return lease;
+    }
+
+    /**
+     * @return Whether devices of the job are parked on any node, which the next build takes if it runs there.
+     */
+    synchronized boolean isParked(String job, String tag, int count) {
+        String devices = "#" + tag + "x" + count;
+        for (String key : leases.keySet()) {
+            // neither job nor node names may contain '@' or '#'
+            int at = key.indexOf('@');
+            int hash = key.indexOf('#', at + 1);
+            if (at >= 0 && hash >= 0 && key.substring(0, at).equals(job) && key.substring(hash).equals(devices)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized boolean remove(String key, WarmLease lease) {
+        if (leases.get(key) != lease) {
+            return false;
+        }
+        leases.remove(key);
+        return true;
+    }
+}
@@ -0,0 +1,183 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import hudson.remoting.Callable;
+import hudson.remoting.RemoteOutputStream;
+import org.jenkinsci.plugins.android_device.util.ImageScaler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Remoting tasks which run {@link AdbClient} requests on the node that owns the adb server.
+ */
+public class AdbCallables {
+    /**
+     * Printed by the boot completion script once <tt>sys.boot_completed</tt> is set.
+     */
+    public static final String BOOT_COMPLETED = "boot_completed";
+
+    public static Callable<String, IOException> hostRequest(final String service, final int timeout_in_ms) {
+        return new Callable<String, IOException>() {
+            public String call() throws IOException {
+                return AdbClient.getInstance().hostRequest(service, timeout_in_ms);
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    public static Callable<String, IOException> shell(final String serial, final String command, final int timeout_in_ms) {
+        return new Callable<String, IOException>() {
+            public String call() throws IOException {
+                return AdbClient.getInstance().shell(serial, command, timeout_in_ms);
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Waits for the device to come online, then for it to finish booting.
+     *
+     * @return A task answering whether the boot completed in time.
+     */
+    public static Callable<Boolean, IOException> waitDeviceReady(final String serial, final String bootCompletedScript, final int timeout_in_ms) {
+        return new Callable<Boolean, IOException>() {
+            public Boolean call() throws IOException {
+                long start = System.currentTimeMillis();
+                AdbClient client = AdbClient.getInstance();
+                client.waitForDevice(serial, timeout_in_ms);
+                int remaining = (int) Math.max(1, timeout_in_ms - (System.currentTimeMillis() - start));
+                return client.shell(serial, bootCompletedScript, remaining).contains(BOOT_COMPLETED);
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Takes a PNG screenshot with <tt>exec:</tt>, which unlike <tt>shell:</tt> has no pty mangling line breaks,
+     * and streams it back through the channel.
+     *
+     * @param out      Stream on the calling side; it is exported to the node.
+     * @param maxWidth Width to scale the screenshot down to on the node, or 0 to keep it as it is.
+     */
+    public static Callable<Boolean, IOException> screenshot(final String serial, OutputStream out,
+                                                            final int maxWidth, final int timeout_in_ms) {
+        final OutputStream remoteOut = new RemoteOutputStream(out);
+        return new Callable<Boolean, IOException>() {
+            public Boolean call() throws IOException {
+                AdbClient client = AdbClient.getInstance();
+                if (maxWidth <= 0) {
+                    client.execute(serial, "exec:screencap -p", remoteOut, timeout_in_ms);
+                } else {
+                    ByteArrayOutputStream image = new ByteArrayOutputStream();
+                    client.execute(serial, "exec:screencap -p", image, timeout_in_ms);
+                    ImageScaler.scaleDown(image.toByteArray(), maxWidth, remoteOut);
+                }
+                remoteOut.flush();
+                return Boolean.TRUE;
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Streams the output of a device service back through the channel.
+     *
+     * @param out Stream on the calling side; it is exported to the node.
+     * @return A task answering {@code true} once the device closed the stream.
+     */
+    public static Callable<Boolean, IOException> execute(final String serial, final String service,
+                                                      OutputStream out, final int timeout_in_ms) {
+        final OutputStream remoteOut = new RemoteOutputStream(out);
+        return new Callable<Boolean, IOException>() {
+            public Boolean call() throws IOException {
+                AdbClient.getInstance().execute(serial, service, remoteOut, timeout_in_ms);
+                return Boolean.TRUE;
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Installs an APK from the node, unless the installed copy of the package is the same.
+     * The installed copy is known to be the same if it is still the one installed last time, and otherwise hashed on the device.
+     *
+     * @param apkPath     Path of the APK on the node.
+     * @param packageName Package of the APK, or <code>null</code> to always install.
+     * @param previous    What was installed last time for that package, or <code>null</code>.
+     * @return What is installed now; {@link DeviceFile#transferred} is 0 if nothing was installed.
+     */
+    public static Callable<DeviceFile, IOException> install(final String serial, final String apkPath, final String packageName,
+                                                            final DeviceFile previous, final int timeout_in_ms) {
+        return new Callable<DeviceFile, IOException>() {
+            public DeviceFile call() throws IOException {
+                AdbClient client = AdbClient.getInstance();
+                FileSync sync = new FileSync(client, serial, timeout_in_ms);
+                File apk = new File(apkPath);
+                DeviceFile current = DeviceFile.of(apk);
+                if (packageName != null) {
+                    String installed = installedPath(client.shell(serial, "pm path " + packageName, timeout_in_ms));
+                    if (installed != null) {
+                        long[] stat = sync.stat(installed);
+                        if (previous != null && previous.isIntact(stat) && current.sameContent(previous)) {
+                            return previous.on(stat, 0);
+                        }
+                        String hash = client.shell(serial, "md5sum " + installed + " 2>/dev/null || md5 " + installed, timeout_in_ms);
+                        if (hash.trim().startsWith(current.md5 + " ")) {
+                            return current.on(stat, 0);
+                        }
+                    }
+                }
+
+                String output = client.install(serial, apk, timeout_in_ms);
+                if (!output.contains("Success")) {
+                    throw new IOException("Failed to install " + apk.getName() + " on " + serial + ": " + output.trim());
+                }
+                long[] stat = null;
+                if (packageName != null) {
+                    String installed = installedPath(client.shell(serial, "pm path " + packageName, timeout_in_ms));
+                    stat = installed == null ? null : sync.stat(installed);
+                }
+                return current.on(stat, current.size);
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Pushes a file of the node to the device, sending only what changed since {@code previous} was pushed.
+     *
+     * @param previous What was pushed to that path last time, or <code>null</code>.
+     * @return What the device has now; {@link DeviceFile#transferred} tells how much had to be sent.
+     */
+    public static Callable<DeviceFile, IOException> push(final String serial, final String localPath, final String remotePath,
+                                                         final DeviceFile previous, final int timeout_in_ms) {
+        return new Callable<DeviceFile, IOException>() {
+            public DeviceFile call() throws IOException {
+                return new FileSync(AdbClient.getInstance(), serial, timeout_in_ms).push(new File(localPath), remotePath, previous);
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * @return The first path in <tt>pm path</tt> output, or <code>null</code> if the package is not installed.
+     */
+    static String installedPath(String pmPathOutput) {
+        for (String line : pmPathOutput.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("package:")) {
+                return line.substring("package:".length());
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,327 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal client for the adb server wire protocol, so that commands can be issued
+ * without forking an adb process.
+ * <p>
+ * The adb server closes its socket once a service request is served, so every request
+ * uses its own short-lived connection to the server running on this node.
+ */
+public class AdbClient {
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_PORT = 5037;
+    public static final String ADB_SERVER_PORT = "ANDROID_ADB_SERVER_PORT";
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final int SYNC_DATA_MAX = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static AdbClient instance;
+
+    private final String host;
+    private final int port;
+
+    public AdbClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @return The client for the adb server of the node this JVM runs on.
+     */
+    public static synchronized AdbClient getInstance() {
+        if (instance == null) {
+            int port = DEFAULT_PORT;
+            String value = System.getenv(ADB_SERVER_PORT);
+            if (value != null) {
+                try {
+                    port = Integer.parseInt(value.trim());
+                } catch (NumberFormatException ignore) {
+                }
+            }
+            instance = new AdbClient(DEFAULT_HOST, port);
+        }
+        return instance;
+    }
+
+    /**
+     * Sends a <tt>host:</tt> request such as <tt>host:devices</tt> or <tt>host:connect:ip:port</tt>.
+     *
+     * @return The reply payload, or an empty string if the server sent none.
+     */
+    public String hostRequest(String service, int timeout_in_ms) throws IOException {
+        Socket socket = open(timeout_in_ms);
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            request(socket, service);
+            return readOptionalString(in);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Switches to the given device and runs a service on it (<tt>shell:...</tt>, <tt>exec:...</tt>),
+     * streaming everything the device sends to {@code out} until it closes the stream.
+     */
+    public void execute(String serial, String service, OutputStream out, int timeout_in_ms) throws IOException {
+        Socket socket = openTransport(serial, timeout_in_ms);
+        try {
+            request(socket, service);
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[SYNC_DATA_MAX];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Runs a service which reads its input from the connection, such as <tt>exec:cmd package install -S size</tt>,
+     * feeding it {@code in}.
+     *
+     * @return Everything the device replied until it closed the stream.
+     */
+    public String execute(String serial, String service, InputStream in, int timeout_in_ms) throws IOException {
+        Socket socket = openTransport(serial, timeout_in_ms);
+        try {
+            request(socket, service);
+            OutputStream out = socket.getOutputStream();
+            byte[] buffer = new byte[SYNC_DATA_MAX];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.flush();
+
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            InputStream replyIn = socket.getInputStream();
+            while ((read = replyIn.read(buffer)) != -1) {
+                reply.write(buffer, 0, read);
+            }
+            return new String(reply.toByteArray(), UTF_8);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Installs an APK by streaming it to the package manager over one connection, without a temporary copy on the device.
+     * Devices before Android 7 have no <tt>cmd package</tt>, so <tt>pm install</tt> reads the stream there instead.
+     *
+     * @return What the package manager replied, <tt>Success</tt> if all went well.
+     */
+    public String install(String serial, File apk, int timeout_in_ms) throws IOException {
+        String output = install(serial, "exec:cmd package install -r -S " + apk.length(), apk, timeout_in_ms);
+        if (!output.contains("Success") && (output.contains("not found") || output.contains("Can't find service"))) {
+            output = install(serial, "exec:pm install -r -S " + apk.length(), apk, timeout_in_ms);
+        }
+        return output;
+    }
+
+    private String install(String serial, String service, File apk, int timeout_in_ms) throws IOException {
+        InputStream in = new FileInputStream(apk);
+        try {
+            return execute(serial, service, in, timeout_in_ms);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Runs a shell command on the given device.
+     *
+     * @return Everything the command printed.
+     */
+    public String shell(String serial, String command, int timeout_in_ms) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        execute(serial, "shell:" + command, out, timeout_in_ms);
+        return new String(out.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Quotes an argument of a shell command, e.g. a path, so that the device shell takes it literally.
+     */
+    public static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * Follows <tt>host:track-devices</tt> until the given device is in the <tt>device</tt> state.
+     *
+     * @throws SocketTimeoutException if it did not get there in time.
+     */
+    public void waitForDevice(String serial, int timeout_in_ms) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout_in_ms;
+        Socket socket = open(timeout_in_ms);
+        try {
+            request(socket, "host:track-devices");
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            while (true) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException(serial + " did not come online");
+                }
+                socket.setSoTimeout((int) remaining);
+                // the server sends the whole device list on every change
+                String devices = readString(in, readLength(in));
+                if (hasState(devices, serial, "device")) {
+                    return;
+                }
+            }
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Checks a device list as returned by <tt>host:devices</tt> for a device in the given state.
+     */
+    public static boolean hasState(String devices, String serial, String state) {
+        String expected = serial + "\t" + state;
+        for (String line : devices.split("\n")) {
+            if (line.trim().equals(expected)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies the content of {@code in} to {@code remotePath} on the device with the sync protocol.
+     */
+    public void push(String serial, InputStream in, String remotePath, int mode, int timeout_in_ms) throws IOException {
+        Socket socket = openTransport(serial, timeout_in_ms);
+        try {
+            request(socket, "sync:");
+            DataInputStream reply = new DataInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), SYNC_DATA_MAX + 8);
+
+            byte[] pathAndMode = (remotePath + "," + mode).getBytes(UTF_8);
+            out.write(syncHeader("SEND", pathAndMode.length));
+            out.write(pathAndMode);
+
+            byte[] buffer = new byte[SYNC_DATA_MAX];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(syncHeader("DATA", read));
+                out.write(buffer, 0, read);
+            }
+            out.write(syncHeader("DONE", (int) (System.currentTimeMillis() / 1000)));
+            out.flush();
+
+            String id = readId(reply);
+            int length = readIntLittleEndian(reply);
+            if (!"OKAY".equals(id)) {
+                throw new IOException("push " + remotePath + " failed: " + readString(reply, length));
+            }
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private Socket openTransport(String serial, int timeout_in_ms) throws IOException {
+        Socket socket = open(timeout_in_ms);
+        try {
+            request(socket, "host:transport:" + serial);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        return socket;
+    }
+
+    private Socket open(int timeout_in_ms) throws AdbException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout_in_ms);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            return socket;
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw new AdbException("adb server is not reachable at " + host + ":" + port, e);
+        }
+    }
+
+    /**
+     * Sends a length-prefixed request and checks the <tt>OKAY</tt>/<tt>FAIL</tt> status.
+     */
+    private static void request(Socket socket, String service) throws IOException {
+        byte[] payload = service.getBytes(UTF_8);
+        OutputStream out = socket.getOutputStream();
+        out.write(String.format("%04x", payload.length).getBytes(UTF_8));
+        out.write(payload);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        String status = readId(in);
+        if ("FAIL".equals(status)) {
+            throw new AdbException(service + ": " + readOptionalString(in));
+        }
+        if (!"OKAY".equals(status)) {
+            throw new AdbException(service + ": unexpected status " + status);
+        }
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        int read = 0;
+        while (read < length.length) {
+            int n = in.read(length, read, length.length - read);
+            if (n == -1) {
+                return "";
+            }
+            read += n;
+        }
+        return readString(in, Integer.parseInt(new String(length, UTF_8), 16));
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        return Integer.parseInt(new String(length, UTF_8), 16);
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, UTF_8);
+    }
+
+    private static String readId(DataInputStream in) throws IOException {
+        byte[] id = new byte[4];
+        in.readFully(id);
+        return new String(id, UTF_8);
+    }
+
+    private static int readIntLittleEndian(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static byte[] syncHeader(String id, int value) {
+        byte[] header = new byte[8];
+        System.arraycopy(id.getBytes(UTF_8), 0, header, 0, 4);
+        header[4] = (byte) value;
+        header[5] = (byte) (value >> 8);
+        header[6] = (byte) (value >> 16);
+        header[7] = (byte) (value >> 24);
+        return header;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
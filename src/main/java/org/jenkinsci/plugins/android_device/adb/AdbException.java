@@ -0,0 +1,20 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the adb server can not be reached or refuses a service request.
+ * Callers may fall back to the adb executable when they see this.
+ */
+public class AdbException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public AdbException(String message) {
+        super(message);
+    }
+
+    public AdbException(String message, Throwable cause) {
+        super(message);
+        initCause(cause);
+    }
+}
@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * What a file sent to a device contained, along with the size and modification time the device reported for it afterwards.
+ * <p>
+ * As long as the device still reports the same size and time, the file on the device is taken to be unchanged,
+ * so that its content is known without hashing it there.
+ */
+public class DeviceFile implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * Files are hashed in chunks of this size, so that only the chunks which changed need to be sent again.
+     */
+    public static final int CHUNK_BYTES = 1024 * 1024;
+
+    public final String md5;
+    public final long size;
+    public final String[] chunkMd5s;
+    /**
+     * Size and modification time as reported by the device, or -1 if it did not tell.
+     */
+    public final long deviceSize;
+    public final long deviceMtime;
+    /**
+     * How many bytes had to be sent for this file the last time; 0 if the device already had it.
+     */
+    public final long transferred;
+
+    private DeviceFile(String md5, long size, String[] chunkMd5s, long deviceSize, long deviceMtime, long transferred) {
+        this.md5 = md5;
+        this.size = size;
+        this.chunkMd5s = chunkMd5s;
+        this.deviceSize = deviceSize;
+        this.deviceMtime = deviceMtime;
+        this.transferred = transferred;
+    }
+
+    /**
+     * Hashes a local file, as a whole and chunk by chunk, in one pass.
+     */
+    public static DeviceFile of(File file) throws IOException {
+        MessageDigest whole = digest();
+        MessageDigest chunk = digest();
+        int chunks = (int) ((file.length() + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        String[] chunkMd5s = new String[chunks];
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            long size = 0;
+            int index = 0;
+            int inChunk = 0;
+            int read;
+            while ((read = in.read(buffer, 0, Math.min(buffer.length, CHUNK_BYTES - inChunk))) != -1) {
+                whole.update(buffer, 0, read);
+                chunk.update(buffer, 0, read);
+                size += read;
+                inChunk += read;
+                if (inChunk == CHUNK_BYTES) {
+                    chunkMd5s[index++] = hex(chunk.digest());
+                    inChunk = 0;
+                }
+            }
+            if (inChunk > 0) {
+                chunkMd5s[index] = hex(chunk.digest());
+            }
+            return new DeviceFile(hex(whole.digest()), size, chunkMd5s, -1, -1, 0);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param stat Size and modification time reported by the device, or <code>null</code>.
+     */
+    DeviceFile on(long[] stat, long transferred) {
+        return new DeviceFile(md5, size, chunkMd5s, stat == null ? -1 : stat[0], stat == null ? -1 : stat[1], transferred);
+    }
+
+    /**
+     * @return Whether the device still reports the size and modification time it had after this file was sent.
+     */
+    boolean isIntact(long[] stat) {
+        return stat != null && deviceSize >= 0 && stat[0] == deviceSize && stat[1] == deviceMtime;
+    }
+
+    boolean sameContent(DeviceFile other) {
+        return md5.equals(other.md5) && size == other.size;
+    }
+
+    /**
+     * @return Whether chunk {@code index} of this file differs from the same chunk of {@code previous}.
+     */
+    boolean chunkChanged(DeviceFile previous, int index) {
+        return index >= previous.chunkMd5s.length || !chunkMd5s[index].equals(previous.chunkMd5s[index]);
+    }
+
+    static String hex(byte[] digest) {
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+
+    private static MessageDigest digest() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return md5 + " (" + size + " bytes)";
+    }
+}
@@ -0,0 +1,127 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends files to a device only as far as they differ from what was sent before, running on the node of the adb server.
+ */
+class FileSync {
+    private static final int FILE_MODE = 0644;
+    private static final String CHUNK_DIR = "/data/local/tmp/";
+    private static final String PATCHED = "patched";
+
+    private final AdbClient client;
+    private final String serial;
+    private final int timeout_in_ms;
+
+    FileSync(AdbClient client, String serial, int timeout_in_ms) {
+        this.client = client;
+        this.serial = serial;
+        this.timeout_in_ms = timeout_in_ms;
+    }
+
+    /**
+     * Pushes {@code file} to {@code remotePath}: not at all if the device still has it, only the changed chunks if
+     * the device still has the previous version and most of the file is the same, and as a whole otherwise.
+     *
+     * @param previous What was last pushed to that path, or <code>null</code>.
+     */
+    DeviceFile push(File file, String remotePath, DeviceFile previous) throws IOException {
+        DeviceFile current = DeviceFile.of(file);
+        long[] stat = stat(remotePath);
+        boolean intact = previous != null && previous.isIntact(stat);
+        if (intact && current.sameContent(previous)) {
+            return previous.on(stat, 0);
+        }
+
+        if (intact && current.size >= previous.size) {
+            List<Integer> changed = new ArrayList<Integer>();
+            for (int i = 0; i < current.chunkMd5s.length; i++) {
+                if (current.chunkChanged(previous, i)) {
+                    changed.add(i);
+                }
+            }
+            if (changed.size() * 2 < current.chunkMd5s.length) {
+                long transferred = pushChunks(file, remotePath, changed);
+                if (transferred >= 0) {
+                    return current.on(stat(remotePath), transferred);
+                }
+                // the device could not patch the file in place, send it as a whole
+            }
+        }
+
+        InputStream in = new FileInputStream(file);
+        try {
+            client.push(serial, in, remotePath, FILE_MODE, timeout_in_ms);
+        } finally {
+            in.close();
+        }
+        return current.on(stat(remotePath), current.size);
+    }
+
+    /**
+     * Writes each chunk into place with <tt>dd</tt>, after pushing it to a temporary file.
+     *
+     * @return How many bytes were sent, or -1 if a chunk could not be written.
+     */
+    private long pushChunks(File file, String remotePath, List<Integer> chunks) throws IOException {
+        byte[] buffer = new byte[DeviceFile.CHUNK_BYTES];
+        long transferred = 0;
+        String chunkPath = null;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            for (int chunk : chunks) {
+                long offset = (long) chunk * DeviceFile.CHUNK_BYTES;
+                int length = (int) Math.min(DeviceFile.CHUNK_BYTES, file.length() - offset);
+                in.seek(offset);
+                in.readFully(buffer, 0, length);
+                chunkPath = chunkPath(remotePath, chunk);
+                client.push(serial, new ByteArrayInputStream(buffer, 0, length), chunkPath, FILE_MODE, timeout_in_ms);
+                String output = client.shell(serial, String.format("dd if=%s of=%s bs=%d seek=%d count=1 conv=notrunc 2>/dev/null && echo %s; rm -f %s",
+                        AdbClient.quote(chunkPath), AdbClient.quote(remotePath), DeviceFile.CHUNK_BYTES, chunk, PATCHED,
+                        AdbClient.quote(chunkPath)), timeout_in_ms);
+                chunkPath = null;
+                transferred += length;
+                if (!output.contains(PATCHED)) {
+                    return -1;
+                }
+            }
+        } finally {
+            in.close();
+            if (chunkPath != null) {
+                // the chunk was not written into place
+                client.shell(serial, "rm -f " + AdbClient.quote(chunkPath), timeout_in_ms);
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * @return A temporary path for a chunk on the device, which pushes to other paths do not share.
+     */
+    static String chunkPath(String remotePath, int chunk) {
+        return CHUNK_DIR + "sync-" + Integer.toHexString(remotePath.hashCode()) + "-" + chunk + ".chunk";
+    }
+
+    /**
+     * @return Size and modification time of a file on the device, or <code>null</code> if it does not exist
+     * or the device has no <tt>stat</tt>.
+     */
+    long[] stat(String remotePath) throws IOException {
+        return parseStat(client.shell(serial, "stat -c '%s %Y' " + AdbClient.quote(remotePath) + " 2>/dev/null", timeout_in_ms));
+    }
+
+    static long[] parseStat(String output) {
+        String[] fields = output.trim().split("\\s+");
+        if (fields.length != 2) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.android_device.FailedToConnectApiServerException;
+import org.jenkinsci.plugins.android_device.Messages;
+import org.jenkinsci.plugins.android_device.RemoteDevice;
+
+import hudson.util.DaemonThreadFactory;
+import net.sf.json.JSONArray;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.jenkinsci.plugins.android_device.AndroidRemote.log;
+
+/**
+ * Keeps what the api server answered to one reservation, whichever connection the answers came over.
+ */
+abstract class AbstractDeviceFarmApi implements DeviceFarmApi {
+
+    public static final String CONNECTION_TIMEOUT = "connection_timeout";
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    public static final String NO_DEVICE = "NO_DEVICE";
+    /**
+     * How often to tell the farm that reserved devices are still in use, in milliseconds.
+     */
+    static final int HEARTBEAT_INTERVAL_MS = 15000;
+    /**
+     * Reconnection backoff, growing with each failed attempt up to the maximum.
+     */
+    static final long RECONNECT_DELAY_MS = 1000;
+    static final long RECONNECT_DELAY_MAX_MS = 30000;
+    static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+    /**
+     * Devices the farm reserved for us, to re-assert after reconnecting.
+     */
+    private final List<JSONObject> held = new CopyOnWriteArrayList<JSONObject>();
+    private volatile boolean refused;
+    private volatile boolean lost;
+    private volatile int deviceCount;
+    private volatile int queuePosition = -1;
+    private volatile int estimatedWaitSeconds = -1;
+    protected PrintStream logger;
+
+    public void connectApiServer(final PrintStream logger, String deviceApiUrl, final String tag, final String jobId) throws FailedToConnectApiServerException {
+        connectApiServer(logger, deviceApiUrl, tag, jobId, DEFAULT_CONNECT_TIMEOUT);
+    }
+
+    public void connectApiServer(final PrintStream logger, String deviceApiUrl, final String tag, final String jobId, long connect_timeout) throws FailedToConnectApiServerException {
+        connectApiServer(logger, deviceApiUrl, tag, jobId, 1, connect_timeout);
+    }
+
+    public void connectApiServer(final PrintStream logger, String deviceApiUrl, final String tag, final String jobId, final int deviceCount, long connect_timeout) throws FailedToConnectApiServerException {
+        connectApiServer(logger, deviceApiUrl, new ReservationRequest(tag, jobId, deviceCount), connect_timeout);
+    }
+
+    /**
+     * Forgets the answers to a previous reservation.
+     */
+    protected void reset(PrintStream logger, ReservationRequest request) {
+        this.logger = logger;
+        deviceCount = request.deviceCount;
+        responses.clear();
+        held.clear();
+        refused = false;
+        lost = false;
+        queuePosition = -1;
+        estimatedWaitSeconds = -1;
+    }
+
+    /**
+     * Handles <tt>svc_device</tt>, which either reserves another device or confirms one re-asserted after reconnecting.
+     * Only a reply echoing <tt>reassert</tt> confirms a re-asserted device. A farm which does not know about
+     * re-asserting takes it for a new request instead, and answers with a device nobody asked for.
+     *
+     * @return Whether the device was expected; if not, the reservation is lost and should be released.
+     */
+    protected boolean onDevice(String value) {
+        try {
+            JSONObject device = JSONObject.fromObject(value);
+            if (device.optBoolean(KEY_REASSERT)) {
+                log(logger, Messages.DEVICE_LEASE_RESTORED(device.optString(KEY_IP), device.optString(KEY_PORT)));
+                return true;
+            }
+            if (held.size() >= deviceCount) {
+                lost = true;
+                log(logger, Messages.DEVICE_LEASE_NOT_REASSERTED(device.optString(KEY_IP), device.optString(KEY_PORT)));
+                return false;
+            }
+            held.add(device);
+        } catch (JSONException e) {
+            // reported by waitApiResponse
+        }
+        respond(value);
+        return true;
+    }
+
+    /**
+     * Handles <tt>svc_nodevice</tt>, which either refuses the request or tells that a re-asserted device was given away.
+     *
+     * @return Whether the request was refused.
+     */
+    protected boolean onNoDevice(Object... args) {
+        try {
+            JSONObject reply = args.length > 0 ? JSONObject.fromObject(String.valueOf(args[0])) : null;
+            if (reply != null && reply.optBoolean(KEY_REASSERT)) {
+                lost = true;
+                log(logger, Messages.DEVICE_LEASE_LOST(reply.optString(KEY_IP), reply.optString(KEY_PORT)));
+                return false;
+            }
+        } catch (JSONException e) {
+            // farms answer plain requests with an empty reply
+        }
+        refused = true;
+        respond(NO_DEVICE);
+        return true;
+    }
+
+    /**
+     * @return Whether a device re-asserted after reconnecting was given away meanwhile, or could not be re-asserted.
+     */
+    public boolean isLost() {
+        return lost;
+    }
+
+    /**
+     * @return What to send with <tt>jen_device</tt> over a new connection: the devices already held, re-asserted
+     * with the same job id, and the request for each device still missing.
+     */
+    protected List<String> requests(ReservationRequest request) {
+        List<String> values = new ArrayList<String>();
+        if (refused) {
+            return values;
+        }
+        String value = buildJenDeviceValue(request);
+        for (JSONObject device : held) {
+            JSONObject reassertion = JSONObject.fromObject(value);
+            reassertion.put(KEY_REASSERT, true);
+            reassertion.put(KEY_IP, device.optString(KEY_IP));
+            reassertion.put(KEY_PORT, device.optInt(KEY_PORT));
+            values.add(reassertion.toString());
+        }
+        for (int i = held.size(); i < request.deviceCount; i++) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * @return The <tt>jen_health</tt> value for a device of the reservation.
+     */
+    static String healthValue(String id, String ip, int port, boolean healthy, JSONObject probes) {
+        JSONObject object = new JSONObject();
+        object.put(KEY_ID, id);
+        object.put(KEY_IP, ip);
+        object.put(KEY_PORT, port);
+        object.put(KEY_HEALTHY, healthy);
+        object.put(KEY_PROBES, probes);
+        return object.toString();
+    }
+
+    /**
+     * @return The <tt>jen_heartbeat</tt> or <tt>jen_out</tt> value listing the reservations.
+     */
+    static String idsValue(Collection<String> ids) {
+        JSONObject object = new JSONObject();
+        object.put(KEY_IDS, JSONArray.fromObject(ids));
+        return object.toString();
+    }
+
+    /**
+     * Queues a response from the api server and wakes up {@link #waitApiResponse}.
+     */
+    protected void respond(String value) {
+        responses.offer(value);
+    }
+
+    /**
+     * Logs where a queued request stands, as reported by <tt>svc_queue</tt>.
+     */
+    protected void updateQueueStatus(PrintStream logger, String value) {
+        try {
+            JSONObject status = JSONObject.fromObject(value);
+            queuePosition = status.optInt(KEY_POSITION, -1);
+            estimatedWaitSeconds = status.optInt(KEY_ESTIMATED_WAIT, -1);
+            log(logger, Messages.QUEUED_FOR_DEVICE(queuePosition, estimatedWaitSeconds));
+        } catch (JSONException e) {
+            log(logger, Messages.FAILED_TO_PARSE_DEVICE_FARM_RESPONSE());
+        }
+    }
+
+    static String buildJenDeviceValue(ReservationRequest request) {
+        JSONObject object = new JSONObject();
+        object.put(KEY_TAG, request.tag);
+        object.put(KEY_ID, encodeId(request.jobId));
+        if (request.queued) {
+            // farms which do not know about queueing just ignore these
+            object.put(KEY_QUEUE, true);
+            object.put(KEY_PRIORITY, request.priority);
+            object.put(KEY_MAX_WAIT, request.maxWaitSeconds);
+        }
+        if (!request.exclude.isEmpty()) {
+            object.put(KEY_EXCLUDE, request.exclude);
+        }
+        return object.toString();
+    }
+
+    /**
+     * @return The job id as sent to the api server.
+     */
+    static String encodeId(String jobId) {
+        try {
+            return URLEncoder.encode(jobId, "utf-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public RemoteDevice waitApiResponse(PrintStream logger, int timeout_in_ms, int check_interval_in_ms) throws MalformedResponseException, TimeoutException, FailedToConnectApiServerException, NoDeviceAvailableException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout_in_ms;
+        long remaining;
+        String value = responses.poll();
+        while (value == null && (remaining = deadline - System.currentTimeMillis()) > 0) {
+
+            if (queuePosition >= 0) {
+                log(logger, Messages.QUEUED_FOR_DEVICE(queuePosition, estimatedWaitSeconds));
+            } else {
+                log(logger, Messages.WAITING_FOR_DEVICE());
+            }
+            // returns as soon as a listener delivers a response
+            value = responses.poll(Math.min(check_interval_in_ms, remaining), TimeUnit.MILLISECONDS);
+        }
+
+        if (value == null) {
+            throw new TimeoutException();
+        }
+        return toDevice(logger, value);
+    }
+
+    public RemoteDevice pollApiResponse(PrintStream logger) throws MalformedResponseException, FailedToConnectApiServerException, NoDeviceAvailableException {
+        String value = responses.poll();
+        return value != null ? toDevice(logger, value) : null;
+    }
+
+    /**
+     * @return The device an answer of the api server reserved, or what went wrong as an exception.
+     */
+    private RemoteDevice toDevice(PrintStream logger, String value) throws MalformedResponseException, FailedToConnectApiServerException, NoDeviceAvailableException {
+        if (CONNECTION_TIMEOUT.equals(value)) {
+            throw new FailedToConnectApiServerException("Connection timeout");
+        }
+
+        if (NO_DEVICE.equals(value)) {
+            throw new NoDeviceAvailableException("no such device");
+        }
+
+        try {
+            JSONObject jsonObject = JSONObject.fromObject(value);
+            log(logger, Messages.DEVICE_READY_RESPONSE(jsonObject.optString(KEY_TAG)));
+            String ip = jsonObject.getString(KEY_IP);
+            int port = jsonObject.getInt(KEY_PORT);
+            String url = jsonObject.optString(KEY_URL);
+            return new RemoteDevice(ip, port, url);
+        } catch (JSONException e) {
+            log(logger, Messages.FAILED_TO_PARSE_DEVICE_FARM_RESPONSE());
+            throw new MalformedResponseException(e);
+        }
+    }
+
+    public int getQueuePosition() {
+        return queuePosition;
+    }
+
+    public int getEstimatedWaitSeconds() {
+        return estimatedWaitSeconds;
+    }
+}
@@ -1,5 +1,6 @@
 package org.jenkinsci.plugins.android_device.api;
 
+import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.android_device.FailedToConnectApiServerException;
 import org.jenkinsci.plugins.android_device.RemoteDevice;
 
@@ -19,11 +20,90 @@ public interface DeviceFarmApi {
     String KEY_SVC_NODEVICE = "svc_nodevice";
     String KEY_IP = "ip";
     String KEY_ID = "id";
+    /**
+     * Ids of the reservations a <tt>jen_out</tt> over a shared connection releases.
+     */
+    String KEY_IDS = "ids";
+    /**
+     * Sent with <tt>jen_device</tt> for a device held before reconnecting, and echoed by the farm with its answer.
+     */
+    String KEY_REASSERT = "reassert";
+    /**
+     * Tells the farm that the listed reservations are still in use.
+     */
+    String KEY_JEN_HEARTBEAT = "jen_heartbeat";
+    /**
+     * Reports the pre-flight probe results of a reserved device.
+     */
+    String KEY_JEN_HEALTH = "jen_health";
+    String KEY_HEALTHY = "healthy";
+    String KEY_PROBES = "probes";
+    /**
+     * Devices a <tt>jen_device</tt> request does not want, as <tt>ip:port</tt>.
+     */
+    String KEY_EXCLUDE = "exclude";
+    String KEY_QUEUE = "queue";
+    String KEY_PRIORITY = "priority";
+    String KEY_MAX_WAIT = "max_wait";
+    String KEY_SVC_QUEUE = "svc_queue";
+    String KEY_POSITION = "position";
+    String KEY_ESTIMATED_WAIT = "eta";
 
     void connectApiServer(PrintStream logger, String deviceApiUrl, String tag, String jobId) throws FailedToConnectApiServerException;
     void connectApiServer(PrintStream logger, String deviceApiUrl, String tag, String jobId, long connect_timeout) throws FailedToConnectApiServerException;
 
-    RemoteDevice waitApiResponse(PrintStream logger, int timeout_in_ms, int check_interval_in_ms) throws MalformedResponseException, TimeoutException, FailedToConnectApiServerException, NoDeviceAvailableException;
+    /**
+     * Connects the api server and asks for {@code deviceCount} devices matching the tag over the same session.
+     * Each call of {@link #waitApiResponse} then returns the next reserved device.
+     */
+    void connectApiServer(PrintStream logger, String deviceApiUrl, String tag, String jobId, int deviceCount, long connect_timeout) throws FailedToConnectApiServerException;
+
+    /**
+     * Connects the api server and sends the reservation request. With a queued request the farm keeps it
+     * until a device is free, reporting the queue position and estimated wait with <tt>svc_queue</tt>.
+     */
+    void connectApiServer(PrintStream logger, String deviceApiUrl, ReservationRequest request, long connect_timeout) throws FailedToConnectApiServerException;
+
+    /**
+     * Waits for the next answer of the api server.
+     *
+     * @throws InterruptedException If the build was aborted meanwhile, which is not a timeout to retry after.
+     */
+    RemoteDevice waitApiResponse(PrintStream logger, int timeout_in_ms, int check_interval_in_ms) throws MalformedResponseException, TimeoutException, FailedToConnectApiServerException, NoDeviceAvailableException, InterruptedException;
+
+    /**
+     * Takes the next answer of the api server without waiting for it, for callers checking back often.
+     *
+     * @return The next reserved device, or {@code null} if the api server has not answered yet.
+     */
+    RemoteDevice pollApiResponse(PrintStream logger) throws MalformedResponseException, FailedToConnectApiServerException, NoDeviceAvailableException;
+
+    /**
+     * @return Position in the farm queue as last reported, 0 being next, or -1 if the request is not queued.
+     */
+    int getQueuePosition();
+
+    /**
+     * @return Estimated wait in seconds as last reported by the farm, or -1 if unknown.
+     */
+    int getEstimatedWaitSeconds();
+
+    /**
+     * @return Whether the session with the api server, and with it the reservation, is still up.
+     */
+    boolean isConnected();
+
+    /**
+     * @return Whether a reserved device may have gone to someone else while the api server was unreachable,
+     * so that the build can no longer count on it.
+     */
+    boolean isLost();
+
+    /**
+     * Tells the farm what the pre-flight probes found on a reserved device, so that it can take a broken device
+     * out of rotation. Farms which do not know <tt>jen_health</tt> ignore it.
+     */
+    void reportHealth(String ip, int port, boolean healthy, JSONObject probes);
 
     void disconnect();
 }
@@ -3,126 +3,123 @@ package org.jenkinsci.plugins.android_device.api;
 import com.github.nkzawa.emitter.Emitter;
 import com.github.nkzawa.socketio.client.IO;
 import com.github.nkzawa.socketio.client.Socket;
-import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.android_device.FailedToConnectApiServerException;
 import org.jenkinsci.plugins.android_device.Messages;
-import org.jenkinsci.plugins.android_device.RemoteDevice;
 
 import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
-import java.net.URLEncoder;
-import java.util.concurrent.TimeoutException;
+import java.util.Collections;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.jenkinsci.plugins.android_device.AndroidRemote.log;
 
 /**
  * Created by skyisle on 08/27/2014.
  */
-public class DeviceFarmApiImpl implements DeviceFarmApi {
+public class DeviceFarmApiImpl extends AbstractDeviceFarmApi {
 
-    public static final String CONNECTION_TIMEOUT = "connection_timeout";
-    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
-    public static final String NO_DEVICE = "NO_DEVICE";
+    private final int heartbeatIntervalMs;
     private Socket apiSocket;
-    private StringBuffer buffer;
+    private ReservationRequest request;
+    private ScheduledFuture<?> heartbeat;
+    private volatile boolean connected;
+    private volatile boolean requested;
 
-    public void connectApiServer(final PrintStream logger, String deviceApiUrl, final String tag, final String jobId) throws FailedToConnectApiServerException {
-        connectApiServer(logger, deviceApiUrl, tag, jobId, DEFAULT_CONNECT_TIMEOUT);
+    public DeviceFarmApiImpl() {
+        this(HEARTBEAT_INTERVAL_MS);
     }
 
-    public void connectApiServer(final PrintStream logger, String deviceApiUrl, final String tag, final String jobId, long connect_timeout) throws FailedToConnectApiServerException {
+    DeviceFarmApiImpl(int heartbeatIntervalMs) {
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+    }
+
+    public void connectApiServer(final PrintStream logger, String deviceApiUrl, final ReservationRequest request, long connect_timeout) throws FailedToConnectApiServerException {
         try {
-            buffer = new StringBuffer();
+            reset(logger, request);
+            requested = false;
+            this.request = request;
             IO.Options options = new IO.Options();
             options.forceNew = true;
-            options.reconnection = false;
+            // a dropped connection is taken up again, re-asserting the devices held with the same job id
+            options.reconnection = true;
+            options.reconnectionDelay = RECONNECT_DELAY_MS;
+            options.reconnectionDelayMax = RECONNECT_DELAY_MAX_MS;
             options.timeout = connect_timeout;
 
             apiSocket = IO.socket(deviceApiUrl, options);
             apiSocket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
                 public void call(Object... args) {
-                    log(logger, Messages.API_SERVER_CONNECTED());
-                    String s = buildJenDeviceValue(tag, jobId);
-                    apiSocket.emit(KEY_JEN_DEVICE, s);
+                    connected = true;
+                    log(logger, requested ? Messages.API_SERVER_RECONNECTED() : Messages.API_SERVER_CONNECTED());
+                    for (String value : requests(request)) {
+                        apiSocket.emit(KEY_JEN_DEVICE, value);
+                    }
+                    requested = true;
                 }
 
             }).on(KEY_SVC_DEVICE, new Emitter.Listener() {
                 public void call(Object... args) {
-                    buffer.append(args[0]);
+                    if (!onDevice(String.valueOf(args[0]))) {
+                        // gives back the unexpected device along with the reservation
+                        apiSocket.emit(KEY_JEN_OUT, "bye");
+                    }
+                }
+            }).on(KEY_SVC_QUEUE, new Emitter.Listener() {
+                public void call(Object... args) {
+                    updateQueueStatus(logger, String.valueOf(args[0]));
                 }
             }).on(KEY_SVC_NODEVICE, new Emitter.Listener() {
                 public void call(Object... args) {
-                    buffer.append(NO_DEVICE);
-                    apiSocket.disconnect();
+                    if (onNoDevice(args)) {
+                        apiSocket.disconnect();
+                    }
                 }
             }).on(Socket.EVENT_DISCONNECT, new Emitter.Listener() {
                 public void call(Object... args) {
+                    connected = false;
                     log(logger, Messages.API_SERVER_DISCONNECTED());
-                    apiSocket.disconnect();
                 }
             }).on(Socket.EVENT_CONNECT_TIMEOUT, new Emitter.Listener() {
                 public void call(Object... objects) {
-                    buffer.append(CONNECTION_TIMEOUT);
+                    if (!requested) {
+                        respond(CONNECTION_TIMEOUT);
+                    }
                 }
             });
             apiSocket.connect();
+
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+            }
+            final String heartbeatValue = idsValue(Collections.singleton(encodeId(request.jobId)));
+            heartbeat = TIMER.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    if (connected) {
+                        apiSocket.emit(KEY_JEN_HEARTBEAT, heartbeatValue);
+                    }
+                }
+            }, heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
         } catch (URISyntaxException e) {
             throw new FailedToConnectApiServerException(e);
         }
     }
 
-    private String buildJenDeviceValue(String tag, String jobId) {
-        JSONObject object = new JSONObject();
-        object.put(KEY_TAG, tag);
-        try {
-            object.put(KEY_ID, URLEncoder.encode(jobId, "utf-8"));
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-        }
-        return object.toString();
+    public boolean isConnected() {
+        return connected && !isLost();
     }
 
-    public RemoteDevice waitApiResponse(PrintStream logger, int timeout_in_ms, int check_interval_in_ms) throws MalformedResponseException, TimeoutException, FailedToConnectApiServerException, NoDeviceAvailableException {
-        long start = System.currentTimeMillis();
-        while (buffer.length() == 0 &&
-                System.currentTimeMillis() < start + timeout_in_ms) {
-
-            log(logger, Messages.WAITING_FOR_DEVICE());
-            try {
-                Thread.sleep(check_interval_in_ms);
-            } catch (InterruptedException e) {
-                break;
-            }
-        }
-
-        if (buffer.length() == 0) {
-            throw new TimeoutException();
-        }
-
-        if (CONNECTION_TIMEOUT.endsWith(buffer.toString())) {
-            throw new FailedToConnectApiServerException("Connection timeout");
-        }
-
-        if (NO_DEVICE.endsWith(buffer.toString())) {
-            throw new NoDeviceAvailableException("no such device");
-        }
-
-        try {
-            JSONObject jsonObject = JSONObject.fromObject(buffer.toString());
-            log(logger, Messages.DEVICE_READY_RESPONSE(jsonObject.optString(KEY_TAG)));
-            String ip = jsonObject.getString(KEY_IP);
-            int port = jsonObject.getInt(KEY_PORT);
-            String url = jsonObject.optString(KEY_URL);
-            return new RemoteDevice(ip, port, url);
-        } catch (JSONException e) {
-            log(logger, Messages.FAILED_TO_PARSE_DEVICE_FARM_RESPONSE());
-            throw new MalformedResponseException(e);
+    public void reportHealth(String ip, int port, boolean healthy, JSONObject probes) {
+        if (connected) {
+            apiSocket.emit(KEY_JEN_HEALTH, healthValue(encodeId(request.jobId), ip, port, healthy, probes));
         }
     }
 
     public void disconnect() {
+        if (heartbeat != null) {
+            heartbeat.cancel(false);
+        }
         if (apiSocket != null) {
             apiSocket.emit(KEY_JEN_OUT, "bye");
             apiSocket.disconnect();
@@ -0,0 +1,385 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import com.github.nkzawa.emitter.Emitter;
+import com.github.nkzawa.socketio.client.IO;
+import com.github.nkzawa.socketio.client.Socket;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.android_device.FailedToConnectApiServerException;
+
+import java.net.URISyntaxException;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * One connection to a device farm shared by all builds of the controller. Reservations are told apart
+ * by the id sent with <tt>jen_device</tt>, which the farm echoes in its replies, and releases of several
+ * reservations go out together as one <tt>jen_out</tt> listing their ids.
+ */
+class DeviceFarmSession {
+    private static final Logger LOGGER = Logger.getLogger(DeviceFarmSession.class.getName());
+    static final int RELEASE_BATCH_MS = 200;
+
+    private static final Map<String, DeviceFarmSession> SESSIONS = new HashMap<String, DeviceFarmSession>();
+
+    /**
+     * What a reservation hears from the farm. Called without holding the session's lock, except for {@link #requests}.
+     */
+    interface Subscriber {
+        /**
+         * Called with the session's lock held, so that the requests go out in order with the session's other events.
+         * Must not block or call back into the session.
+         *
+         * @return What to send with <tt>jen_device</tt>, re-asserting the devices held over a new connection.
+         */
+        List<String> requests(ReservationRequest request);
+
+        /**
+         * The request went out to the farm.
+         */
+        void onRequested();
+
+        /**
+         * The reservation was re-asserted over a new connection.
+         */
+        void onReconnected();
+
+        /**
+         * The connection went down, and the farm dropped the reservation with it.
+         */
+        void onDisconnected();
+
+        /**
+         * The farm could not be reached to send the request.
+         */
+        void onConnectFailed();
+
+        void onDevice(String value);
+
+        void onQueue(String value);
+
+        void onNoDevice(String value);
+    }
+
+    private static class Reservation {
+        final Subscriber subscriber;
+        final ReservationRequest request;
+        boolean sent;
+
+        Reservation(Subscriber subscriber, ReservationRequest request) {
+            this.subscriber = subscriber;
+            this.request = request;
+        }
+    }
+
+    private final String deviceApiUrl;
+    private final Socket socket;
+    private final Map<String, Reservation> reservations = new LinkedHashMap<String, Reservation>();
+    private final List<String> releases = new ArrayList<String>();
+    private final ScheduledFuture<?> heartbeat;
+    private boolean connected;
+    /**
+     * Whether to close the session once its reservations are given back, unless a build uses it again meanwhile.
+     */
+    private boolean closing;
+
+    /**
+     * @return The session to the farm at the url, connecting it on first use.
+     */
+    static DeviceFarmSession get(String deviceApiUrl, long connectTimeout) throws FailedToConnectApiServerException {
+        synchronized (SESSIONS) {
+            DeviceFarmSession session = SESSIONS.get(deviceApiUrl);
+            if (session == null) {
+                session = new DeviceFarmSession(deviceApiUrl, connectTimeout);
+                SESSIONS.put(deviceApiUrl, session);
+                session.socket.connect();
+            } else {
+                session.keepOpen();
+            }
+            return session;
+        }
+    }
+
+    /**
+     * Closes the session to the farm at the url once the reservations still made over it are given back.
+     */
+    static void closeWhenIdle(String deviceApiUrl) {
+        DeviceFarmSession session;
+        synchronized (SESSIONS) {
+            session = SESSIONS.get(deviceApiUrl);
+        }
+        if (session != null) {
+            session.markClosing();
+            session.closeIfIdle();
+        }
+    }
+
+    /**
+     * Closes the session to the farm at the url, dropping its reservations.
+     */
+    static void close(String deviceApiUrl) {
+        DeviceFarmSession session;
+        synchronized (SESSIONS) {
+            session = SESSIONS.remove(deviceApiUrl);
+        }
+        if (session != null) {
+            session.heartbeat.cancel(false);
+            session.socket.disconnect();
+        }
+    }
+
+    DeviceFarmSession(String deviceApiUrl, long connectTimeout) throws FailedToConnectApiServerException {
+        this.deviceApiUrl = deviceApiUrl;
+        IO.Options options = new IO.Options();
+        options.forceNew = true;
+        options.reconnection = true;
+        options.reconnectionDelay = AbstractDeviceFarmApi.RECONNECT_DELAY_MS;
+        options.reconnectionDelayMax = AbstractDeviceFarmApi.RECONNECT_DELAY_MAX_MS;
+        options.timeout = connectTimeout;
+        try {
+            socket = IO.socket(deviceApiUrl, options);
+        } catch (URISyntaxException e) {
+            throw new FailedToConnectApiServerException(e);
+        }
+
+        socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+            public void call(Object... args) {
+                onConnect();
+            }
+        }).on(DeviceFarmApi.KEY_SVC_DEVICE, new Emitter.Listener() {
+            public void call(Object... args) {
+                Subscriber subscriber = route(args);
+                if (subscriber != null) {
+                    subscriber.onDevice(String.valueOf(args[0]));
+                }
+            }
+        }).on(DeviceFarmApi.KEY_SVC_QUEUE, new Emitter.Listener() {
+            public void call(Object... args) {
+                Subscriber subscriber = route(args);
+                if (subscriber != null) {
+                    subscriber.onQueue(String.valueOf(args[0]));
+                }
+            }
+        }).on(DeviceFarmApi.KEY_SVC_NODEVICE, new Emitter.Listener() {
+            public void call(Object... args) {
+                Subscriber subscriber = route(args);
+                if (subscriber != null) {
+                    subscriber.onNoDevice(String.valueOf(args[0]));
+                }
+            }
+        }).on(Socket.EVENT_DISCONNECT, new Emitter.Listener() {
+            public void call(Object... args) {
+                onDisconnect();
+            }
+        }).on(Socket.EVENT_CONNECT_TIMEOUT, new Emitter.Listener() {
+            public void call(Object... args) {
+                onConnectTimeout();
+            }
+        });
+        heartbeat = AbstractDeviceFarmApi.TIMER.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                heartbeat();
+            }
+        }, AbstractDeviceFarmApi.HEARTBEAT_INTERVAL_MS, AbstractDeviceFarmApi.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Sends a reservation request over the session, or as soon as it connects.
+     *
+     * @return The id the farm knows the reservation by, unique within the session.
+     */
+    String reserve(ReservationRequest request, Subscriber subscriber) {
+        String id;
+        boolean sent;
+        synchronized (this) {
+            String jobId = request.jobId;
+            for (int n = 2; reservations.containsKey(AbstractDeviceFarmApi.encodeId(jobId)); n++) {
+                jobId = request.jobId + "#" + n;
+            }
+            id = AbstractDeviceFarmApi.encodeId(jobId);
+            ReservationRequest unique = new ReservationRequest(request.tag, jobId, request.deviceCount,
+                    request.queued, request.priority, request.maxWaitSeconds, request.exclude);
+            Reservation reservation = new Reservation(subscriber, unique);
+            reservations.put(id, reservation);
+            sent = connected;
+            if (sent) {
+                send(reservation);
+            }
+        }
+        if (sent) {
+            subscriber.onRequested();
+        }
+        return id;
+    }
+
+    /**
+     * Gives the devices of a reservation back to the farm along with other releases of the next few milliseconds.
+     */
+    void release(String id) {
+        synchronized (this) {
+            Reservation reservation = reservations.remove(id);
+            if (reservation != null && reservation.sent) {
+                releases.add(id);
+                if (releases.size() == 1) {
+                    AbstractDeviceFarmApi.TIMER.schedule(new Runnable() {
+                        public void run() {
+                            flushReleases();
+                            closeIfIdle();
+                        }
+                    }, RELEASE_BATCH_MS, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        closeIfIdle();
+    }
+
+    private synchronized void markClosing() {
+        closing = true;
+    }
+
+    private synchronized void keepOpen() {
+        closing = false;
+    }
+
+    /**
+     * Closes the session if it is to be closed and nothing is left to tell the farm.
+     */
+    private void closeIfIdle() {
+        synchronized (SESSIONS) {
+            synchronized (this) {
+                if (!closing || !reservations.isEmpty() || !releases.isEmpty()) {
+                    return;
+                }
+            }
+            if (SESSIONS.get(deviceApiUrl) == this) {
+                SESSIONS.remove(deviceApiUrl);
+            }
+        }
+        heartbeat.cancel(false);
+        socket.disconnect();
+    }
+
+    /**
+     * Sends an event if the session is connected, dropping it otherwise.
+     */
+    synchronized void emit(String event, String value) {
+        if (connected) {
+            socket.emit(event, value);
+        }
+    }
+
+    /**
+     * Sends the pending releases, or keeps them for when the session is connected again.
+     */
+    private synchronized void flushReleases() {
+        if (connected && !releases.isEmpty()) {
+            socket.emit(DeviceFarmApi.KEY_JEN_OUT, AbstractDeviceFarmApi.idsValue(releases));
+            releases.clear();
+        }
+    }
+
+    /**
+     * Tells the farm which reservations are still in use, so that it keeps their devices.
+     */
+    private synchronized void heartbeat() {
+        List<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, Reservation> reservation : reservations.entrySet()) {
+            if (reservation.getValue().sent) {
+                ids.add(reservation.getKey());
+            }
+        }
+        if (connected && !ids.isEmpty()) {
+            socket.emit(DeviceFarmApi.KEY_JEN_HEARTBEAT, AbstractDeviceFarmApi.idsValue(ids));
+        }
+    }
+
+    /**
+     * @return Whether the reservation went out before, and was re-asserted now.
+     */
+    private boolean send(Reservation reservation) {
+        for (String value : reservation.subscriber.requests(reservation.request)) {
+            socket.emit(DeviceFarmApi.KEY_JEN_DEVICE, value);
+        }
+        boolean reasserted = reservation.sent;
+        reservation.sent = true;
+        return reasserted;
+    }
+
+    private void onConnect() {
+        List<Subscriber> requested = new ArrayList<Subscriber>();
+        List<Subscriber> reconnected = new ArrayList<Subscriber>();
+        synchronized (this) {
+            connected = true;
+            for (Reservation reservation : reservations.values()) {
+                if (send(reservation)) {
+                    reconnected.add(reservation.subscriber);
+                } else {
+                    requested.add(reservation.subscriber);
+                }
+            }
+            flushReleases();
+        }
+        closeIfIdle();
+        for (Subscriber subscriber : requested) {
+            subscriber.onRequested();
+        }
+        for (Subscriber subscriber : reconnected) {
+            subscriber.onReconnected();
+        }
+    }
+
+    private void onDisconnect() {
+        List<Subscriber> disconnected = new ArrayList<Subscriber>();
+        synchronized (this) {
+            connected = false;
+            for (Reservation reservation : reservations.values()) {
+                if (reservation.sent) {
+                    disconnected.add(reservation.subscriber);
+                }
+            }
+        }
+        for (Subscriber subscriber : disconnected) {
+            subscriber.onDisconnected();
+        }
+    }
+
+    private void onConnectTimeout() {
+        List<Subscriber> failed = new ArrayList<Subscriber>();
+        synchronized (this) {
+            for (Reservation reservation : reservations.values()) {
+                if (!reservation.sent) {
+                    failed.add(reservation.subscriber);
+                }
+            }
+        }
+        for (Subscriber subscriber : failed) {
+            subscriber.onConnectFailed();
+        }
+    }
+
+    /**
+     * @return Who the farm replied to, or {@code null} if the reservation is gone.
+     */
+    private synchronized Subscriber route(Object... args) {
+        String id = null;
+        try {
+            if (args.length > 0) {
+                id = JSONObject.fromObject(String.valueOf(args[0])).optString(DeviceFarmApi.KEY_ID, null);
+            }
+        } catch (JSONException e) {
+            LOGGER.fine("Malformed reply from the device farm: " + args[0]);
+        }
+        Reservation reservation = id != null ? reservations.get(id) : null;
+        if (reservation == null) {
+            LOGGER.fine("Dropping a reply from the device farm for an unknown reservation " + id);
+            return null;
+        }
+        return reservation.subscriber;
+    }
+}
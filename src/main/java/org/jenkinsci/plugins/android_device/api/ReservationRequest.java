@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a build asks the device farm for.
+ */
+public class ReservationRequest {
+    public static final int DEFAULT_PRIORITY = 0;
+
+    public final String tag;
+    public final String jobId;
+    public final int deviceCount;
+    /**
+     * Whether the farm should queue the request while no device is free, instead of answering <tt>svc_nodevice</tt>.
+     */
+    public final boolean queued;
+    /**
+     * Requests with a higher priority are served first when queued.
+     */
+    public final int priority;
+    /**
+     * How long the farm may keep the request queued, in seconds.
+     */
+    public final int maxWaitSeconds;
+    /**
+     * Devices the farm should not give out for this request, as <tt>ip:port</tt>, e.g. those which already failed the build.
+     */
+    public final List<String> exclude;
+
+    public ReservationRequest(String tag, String jobId, int deviceCount) {
+        this(tag, jobId, deviceCount, false, DEFAULT_PRIORITY, 0);
+    }
+
+    public ReservationRequest(String tag, String jobId, int deviceCount, boolean queued, int priority, int maxWaitSeconds) {
+        this(tag, jobId, deviceCount, queued, priority, maxWaitSeconds, Collections.<String>emptyList());
+    }
+
+    public ReservationRequest(String tag, String jobId, int deviceCount, boolean queued, int priority, int maxWaitSeconds,
+                              List<String> exclude) {
+        this.tag = tag;
+        this.jobId = jobId;
+        this.deviceCount = deviceCount;
+        this.queued = queued;
+        this.priority = priority;
+        this.maxWaitSeconds = maxWaitSeconds;
+        this.exclude = exclude;
+    }
+}
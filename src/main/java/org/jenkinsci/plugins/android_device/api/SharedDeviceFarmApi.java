@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.android_device.FailedToConnectApiServerException;
+import org.jenkinsci.plugins.android_device.Messages;
+
+import java.io.PrintStream;
+import java.util.List;
+
+import static org.jenkinsci.plugins.android_device.AndroidRemote.log;
+
+/**
+ * A reservation over the connection shared by all builds talking to the same farm,
+ * for farms which echo the request id in their replies.
+ */
+public class SharedDeviceFarmApi extends AbstractDeviceFarmApi {
+
+    private DeviceFarmSession session;
+    private String id;
+    private volatile boolean connected;
+
+    /**
+     * Closes the shared connection to the farm at the url once the builds still using it are done with it,
+     * e.g. after builds were configured to use another farm.
+     */
+    public static void closeSessionWhenIdle(String deviceApiUrl) {
+        DeviceFarmSession.closeWhenIdle(deviceApiUrl);
+    }
+
+    public void connectApiServer(final PrintStream logger, String deviceApiUrl, ReservationRequest request, long connect_timeout) throws FailedToConnectApiServerException {
+        reset(logger, request);
+        session = DeviceFarmSession.get(deviceApiUrl, connect_timeout);
+        id = session.reserve(request, new DeviceFarmSession.Subscriber() {
+            public List<String> requests(ReservationRequest request) {
+                return SharedDeviceFarmApi.this.requests(request);
+            }
+
+            public void onRequested() {
+                connected = true;
+                log(logger, Messages.API_SERVER_CONNECTED());
+            }
+
+            public void onReconnected() {
+                connected = true;
+                log(logger, Messages.API_SERVER_RECONNECTED());
+            }
+
+            public void onDisconnected() {
+                connected = false;
+                log(logger, Messages.API_SERVER_DISCONNECTED());
+            }
+
+            public void onConnectFailed() {
+                respond(CONNECTION_TIMEOUT);
+            }
+
+            public void onDevice(String value) {
+                if (!SharedDeviceFarmApi.this.onDevice(value)) {
+                    // gives back the unexpected device along with the reservation
+                    session.release(id);
+                }
+            }
+
+            public void onQueue(String value) {
+                updateQueueStatus(logger, value);
+            }
+
+            public void onNoDevice(String value) {
+                SharedDeviceFarmApi.this.onNoDevice(value);
+            }
+        });
+    }
+
+    public boolean isConnected() {
+        return connected && !isLost();
+    }
+
+    public void reportHealth(String ip, int port, boolean healthy, JSONObject probes) {
+        if (session != null) {
+            session.emit(KEY_JEN_HEALTH, healthValue(id, ip, port, healthy, probes));
+        }
+    }
+
+    public void disconnect() {
+        if (session != null) {
+            connected = false;
+            session.release(id);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.android_device.sdk;
 
 import hudson.EnvVars;
+import org.jenkinsci.plugins.android_device.SdkInstallationException;
 import org.jenkinsci.plugins.android_device.util.Utils;
 
 import java.io.IOException;
@@ -13,12 +14,21 @@ public class AndroidSdk implements Serializable {
 
     private final String sdkRoot;
     private final String sdkHome;
+    private transient SdkDescriptor descriptor;
 
     public AndroidSdk(String root, String home) throws IOException {
         this.sdkRoot = root;
         this.sdkHome = home;
     }
 
+    /**
+     * Uses the SDK resolved by an earlier build, along with the tools already looked up in it.
+     */
+    public AndroidSdk(SdkDescriptor descriptor) throws IOException {
+        this(descriptor.getRoot(), descriptor.getRoot());
+        this.descriptor = descriptor;
+    }
+
     public boolean hasKnownRoot() {
         return this.sdkRoot != null;
     }
@@ -35,6 +45,27 @@ public class AndroidSdk implements Serializable {
         return this.sdkHome;
     }
 
+    SdkIndex getIndex() {
+        if (descriptor != null) {
+            return descriptor.getIndex();
+        }
+        return SdkIndex.scan(sdkRoot);
+    }
+
+    /**
+     * @return The build-tools revision to use, or <code>null</code> for the newest one.
+     */
+    String getBuildToolsRevision() {
+        return descriptor == null ? null : descriptor.getBuildToolsRevision();
+    }
+
+    String findToolDir(Tool tool) throws SdkInstallationException {
+        if (descriptor != null) {
+            return descriptor.findToolDir(this, tool);
+        }
+        return tool.findInSdk(this);
+    }
+
     public void setupEnvVars(EnvVars buildEnvironment) {
         if (hasKnownHome()) {
             buildEnvironment.put(ANDROID_SDK_HOME, getSdkHome());
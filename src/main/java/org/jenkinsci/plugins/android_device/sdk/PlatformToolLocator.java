@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.android_device.sdk;
 
 import org.jenkinsci.plugins.android_device.SdkInstallationException;
+import org.jenkinsci.plugins.android_device.util.Utils;
 
 import java.io.File;
 
@@ -9,21 +10,14 @@ class PlatformToolLocator implements ToolLocator {
 
     public String findInSdk(AndroidSdk androidSdk, Tool tool) throws SdkInstallationException {
         if (tool == Tool.AAPT) {
-            File buildToolsDir = new File(androidSdk.getSdkRoot() + BUILD_TOOLS_PATH);
-            if (buildToolsDir.exists()) {
-                String[] subDirs = buildToolsDir.list();
-                // TODO: Maybe we should be using the newest toolset available?
-                return getFirstInstalledBuildToolsDir(subDirs);
+            SdkIndex index = androidSdk.getIndex();
+            if (index.hasBuildToolsDir()) {
+                SdkIndex.Package buildTools = index
+                        .findBuildTools(androidSdk.getBuildToolsRevision(), tool.getExecutable(Utils.isUnix()));
+                return BUILD_TOOLS_PATH + buildTools.dirName + File.separator;
             }
         }
         return File.separator + "platform-tools" + File.separator;
 
     }
-
-    private String getFirstInstalledBuildToolsDir(String[] buildToolsDirs) throws SdkInstallationException {
-        if (buildToolsDirs.length == 0) {
-            throw new SdkInstallationException("Please install at least one set of build-tools.");
-        }
-        return BUILD_TOOLS_PATH + buildToolsDirs[0] + File.separator;
-    }
-}
\ No newline at end of file
+}
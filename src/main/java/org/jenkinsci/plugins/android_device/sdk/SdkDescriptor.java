@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.android_device.sdk;
+
+import org.jenkinsci.plugins.android_device.SdkInstallationException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An Android SDK resolved on a node, along with its {@link SdkIndex} and the tool directories already looked up in it.
+ * <p>
+ * The index is scanned on the node when the SDK is resolved and kept until {@link SdkDescriptorCache} drops it
+ * on reconnect, so installing new build-tools on a node takes effect once it reconnects.
+ */
+public class SdkDescriptor {
+    private final String root;
+    private final String buildToolsRevision;
+    private final SdkIndex index;
+    private final ConcurrentMap<Tool, String> toolDirs = new ConcurrentHashMap<Tool, String>();
+
+    /**
+     * @param buildToolsRevision The build-tools revision to use, or <code>null</code> for the newest one.
+     * @param index              The SDK as scanned on its node, or <code>null</code> if the root is unknown.
+     */
+    public SdkDescriptor(String root, String buildToolsRevision, SdkIndex index) {
+        this.root = root;
+        this.buildToolsRevision = buildToolsRevision;
+        this.index = index;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    public String getBuildToolsRevision() {
+        return buildToolsRevision;
+    }
+
+    SdkIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Directory of the tool relative to the SDK root, as returned by its {@link ToolLocator}.
+     */
+    String findToolDir(AndroidSdk androidSdk, Tool tool) throws SdkInstallationException {
+        String dir = toolDirs.get(tool);
+        if (dir == null) {
+            dir = tool.toolLocator.findInSdk(androidSdk, tool);
+            toolDirs.put(tool, dir);
+        }
+        return dir;
+    }
+}
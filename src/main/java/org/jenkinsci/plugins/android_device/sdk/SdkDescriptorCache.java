@@ -0,0 +1,62 @@
+package org.jenkinsci.plugins.android_device.sdk;
+
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.slaves.ComputerListener;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SDKs already resolved on each node, so that builds after the first one skip the discovery round trip to the node.
+ * <p>
+ * Entries of a node are dropped whenever it goes on or off line, since its environment may have changed meanwhile.
+ */
+public class SdkDescriptorCache {
+    private static final SdkDescriptorCache INSTANCE = new SdkDescriptorCache();
+
+    private final ConcurrentMap<String, SdkDescriptor> descriptors = new ConcurrentHashMap<String, SdkDescriptor>();
+
+    public static SdkDescriptorCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param config The SDK root given in global config, with build variables expanded.
+     */
+    public SdkDescriptor get(String nodeName, String config) {
+        return descriptors.get(key(nodeName, config));
+    }
+
+    public void put(String nodeName, String config, SdkDescriptor descriptor) {
+        descriptors.put(key(nodeName, config), descriptor);
+    }
+
+    public void invalidate(String nodeName) {
+        String prefix = nodeName + '\n';
+        for (Iterator<String> keys = descriptors.keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().startsWith(prefix)) {
+                keys.remove();
+            }
+        }
+    }
+
+    private static String key(String nodeName, String config) {
+        return nodeName + '\n' + (config == null ? "" : config);
+    }
+
+    @Extension
+    public static class NodeListener extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) {
+            get().invalidate(c.getName());
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            get().invalidate(c.getName());
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.jenkinsci.plugins.android_device.sdk;
+
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import org.jenkinsci.plugins.android_device.SdkInstallationException;
+import org.jenkinsci.plugins.android_device.util.Utils;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The build-tools and platform-tools installed in an SDK, ordered by their <tt>Pkg.Revision</tt>.
+ * <p>
+ * Scanned on the node once per {@link SdkDescriptor}, so picking a tool does not list the SDK directories again.
+ */
+public class SdkIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final String SOURCE_PROPERTIES = "source.properties";
+    static final String PKG_REVISION = "Pkg.Revision";
+
+    /**
+     * An installed SDK package.
+     */
+    public static class Package implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public final String dirName;
+        public final String revision;
+        private final Set<String> files;
+
+        Package(File dir, String revision) {
+            this.dirName = dir.getName();
+            this.revision = revision;
+            this.files = new HashSet<String>();
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isFile()) {
+                        files.add(child.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Comparator<Package> NEWEST_FIRST = new Comparator<Package>() {
+        public int compare(Package a, Package b) {
+            return Utils.compareRevisions(b.revision, a.revision);
+        }
+    };
+
+    private final boolean hasBuildToolsDir;
+    private final List<Package> buildTools;
+    private final Package platformTools;
+
+    SdkIndex(boolean hasBuildToolsDir, List<Package> buildTools, Package platformTools) {
+        this.hasBuildToolsDir = hasBuildToolsDir;
+        this.buildTools = buildTools;
+        this.platformTools = platformTools;
+    }
+
+    /**
+     * Scans the SDK on the node the channel leads to, in a single round trip.
+     */
+    public static SdkIndex scan(VirtualChannel channel, final String sdkRoot) throws IOException, InterruptedException {
+        return channel.call(new Callable<SdkIndex, IOException>() {
+            public SdkIndex call() {
+                return scan(sdkRoot);
+            }
+
+            private static final long serialVersionUID = 1L;
+        });
+    }
+
+    /**
+     * Scans the SDK on the local file system.
+     */
+    public static SdkIndex scan(String sdkRoot) {
+        List<Package> buildTools = new ArrayList<Package>();
+        File buildToolsDir = new File(sdkRoot, "build-tools");
+        File[] dirs = buildToolsDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory()) {
+                    buildTools.add(new Package(dir, readRevision(dir)));
+                }
+            }
+        }
+        Collections.sort(buildTools, NEWEST_FIRST);
+
+        File platformToolsDir = new File(sdkRoot, "platform-tools");
+        Package platformTools = platformToolsDir.isDirectory() ? new Package(platformToolsDir, readRevision(platformToolsDir)) : null;
+        return new SdkIndex(buildToolsDir.exists(), buildTools, platformTools);
+    }
+
+    /**
+     * @return Whether the SDK has a <tt>build-tools</tt> directory, even an empty one.
+     */
+    public boolean hasBuildToolsDir() {
+        return hasBuildToolsDir;
+    }
+
+    /**
+     * @return Installed build-tools, newest first.
+     */
+    public List<Package> getBuildTools() {
+        return Collections.unmodifiableList(buildTools);
+    }
+
+    /**
+     * @return The platform-tools package, or <code>null</code> if not installed.
+     */
+    public Package getPlatformTools() {
+        return platformTools;
+    }
+
+    /**
+     * Picks the build-tools to run the given executable from.
+     *
+     * @param pinnedRevision The revision to use, or <code>null</code> for the newest one containing the executable.
+     */
+    public Package findBuildTools(String pinnedRevision, String executable) throws SdkInstallationException {
+        if (buildTools.isEmpty()) {
+            throw new SdkInstallationException("Please install at least one set of build-tools.");
+        }
+        for (Package candidate : buildTools) {
+            if (pinnedRevision != null && Utils.compareRevisions(candidate.revision, pinnedRevision) != 0) {
+                continue;
+            }
+            if (candidate.files.contains(executable)) {
+                return candidate;
+            }
+        }
+        if (pinnedRevision != null) {
+            throw new SdkInstallationException("build-tools " + pinnedRevision + " with " + executable + " is not installed.");
+        }
+        throw new SdkInstallationException("None of the installed build-tools contains " + executable + ".");
+    }
+
+    /**
+     * @return <tt>Pkg.Revision</tt> from the package's <tt>source.properties</tt>, or the directory name if there is none.
+     */
+    static String readRevision(File dir) {
+        File file = new File(dir, SOURCE_PROPERTIES);
+        if (file.isFile()) {
+            Properties properties = new Properties();
+            try {
+                InputStream in = new FileInputStream(file);
+                try {
+                    properties.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ignore) {
+                // fall back to the directory name
+            }
+            String revision = properties.getProperty(PKG_REVISION);
+            if (revision != null && revision.trim().length() > 0) {
+                return revision.trim();
+            }
+        }
+        return dir.getName();
+    }
+}
@@ -114,7 +114,7 @@ public class SdkUtils {
         String androidToolsDir;
         if (androidSdk.hasKnownRoot()) {
             try {
-                androidToolsDir = androidSdk.getSdkRoot() + tool.findInSdk(androidSdk);
+                androidToolsDir = androidSdk.getSdkRoot() + androidSdk.findToolDir(tool);
             } catch (SdkInstallationException e) {
                 LOGGER.warning("A build-tools directory was found but there were no build-tools installed. Assuming command is on the PATH");
                 androidToolsDir = "";
@@ -0,0 +1,52 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Remembers when data last went through, so that a reader can tell when a stream has gone quiet.
+ */
+public class ActivityOutputStream extends FilterOutputStream {
+    private volatile long lastWriteMillis = System.currentTimeMillis();
+
+    public ActivityOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        lastWriteMillis = System.currentTimeMillis();
+    }
+
+    public long getLastWriteMillis() {
+        return lastWriteMillis;
+    }
+
+    /**
+     * Waits until nothing was written for {@code quietMs}, but no longer than {@code timeoutMs}.
+     *
+     * @return {@code true} if the stream went quiet in time.
+     */
+    public boolean awaitQuiet(long quietMs, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long quietUntil = lastWriteMillis + quietMs;
+            if (now >= quietUntil) {
+                return true;
+            }
+            if (now >= deadline) {
+                return false;
+            }
+            Thread.sleep(Math.min(quietUntil, deadline) - now);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Shrinks screenshots before they are archived.
+ */
+public class ImageScaler {
+
+    /**
+     * Writes the image scaled down to {@code maxWidth} as PNG, keeping the aspect ratio.
+     * Images which are narrow enough, or which can not be decoded, are written unchanged.
+     */
+    public static void scaleDown(byte[] image, int maxWidth, OutputStream out) throws IOException {
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(image));
+        if (source == null || source.getWidth() <= maxWidth) {
+            out.write(image);
+            return;
+        }
+
+        int height = Math.max(1, (int) ((long) source.getHeight() * maxWidth / source.getWidth()));
+        BufferedImage scaled = new BufferedImage(maxWidth, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(source, 0, 0, maxWidth, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        ImageIO.write(scaled, "png", out);
+    }
+}
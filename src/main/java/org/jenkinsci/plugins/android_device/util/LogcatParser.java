@@ -0,0 +1,370 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pipe stage for <tt>logcat -v time</tt> output, which passes the lines accepted by a filter on to the archive,
+ * and copies Java crashes, ANRs and native crash dumps into a separate crash report as they come by.
+ * <p>
+ * Lines are tokenized in place by their fixed layout, e.g. <tt>01-02 03:04:05.678 E/AndroidRuntime( 1234): FATAL EXCEPTION: main</tt>,
+ * so a line costs no allocation unless it is an error. Lines which do not look like that are always archived.
+ * <p>
+ * The filter uses the logcat filterspec syntax, e.g. <tt>ActivityManager:I MyApp:D *:W</tt>.
+ * The crash report ends with how many crashes of each kind and how many error lines of each tag were seen.
+ */
+public class LogcatParser extends OutputStream {
+    private static final String LEVELS = "VDIWEFA";
+    private static final int LEVEL_ERROR = LEVELS.indexOf('E');
+    private static final int LEVEL_SILENT = LEVELS.length();
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+    /**
+     * Offset of the tag, right after <tt>MM-DD HH:MM:SS.mmm L/</tt>.
+     */
+    private static final int TAG_START = 21;
+    /**
+     * A crash block ends once this many lines went by without a line of it.
+     */
+    private static final int BLOCK_IDLE_LINES = 20;
+
+    public enum CrashKind {
+        FATAL_EXCEPTION("FATAL EXCEPTION", "AndroidRuntime", "FATAL EXCEPTION"),
+        ANR("ANR", "ActivityManager", "ANR in "),
+        NATIVE_CRASH("Native crash", "DEBUG", "*** *** ***");
+
+        public final String label;
+        private final byte[] tag;
+        private final byte[] marker;
+
+        CrashKind(String label, String tag, String marker) {
+            this.label = label;
+            this.tag = ascii(tag);
+            this.marker = ascii(marker);
+        }
+    }
+
+    private static class Rule {
+        final byte[] tag;
+        final int level;
+
+        Rule(byte[] tag, int level) {
+            this.tag = tag;
+            this.level = level;
+        }
+    }
+
+    private final OutputStream archive;
+    private final File crashFile;
+    private final Rule[] rules;
+    private final int defaultLevel;
+    private OutputStream crashes;
+
+    private byte[] line = new byte[1024];
+    private int length;
+    private boolean overlong;
+
+    // tokens of the current line
+    private int level;
+    private int tagEnd;
+    private int pid;
+    private int messageStart;
+
+    private CrashKind block;
+    private int blockPid;
+    private int idleLines;
+    private final int[] crashCounts = new int[CrashKind.values().length];
+    private final Map<String, Integer> errorCounts = new TreeMap<String, Integer>();
+
+    /**
+     * @param archive   Receives the lines accepted by the filter.
+     * @param filter    logcat filterspec, or <code>null</code> to archive everything.
+     * @param crashFile Where to write the crash report, created on the first crash or error line.
+     *                  <code>null</code> to only count crashes.
+     */
+    public LogcatParser(OutputStream archive, String filter, File crashFile) {
+        this.archive = archive;
+        this.crashFile = crashFile;
+
+        List<Rule> rules = new ArrayList<Rule>();
+        int defaultLevel = 0;
+        if (filter != null) {
+            for (String spec : filter.trim().split("[\\s,]+")) {
+                if (spec.length() == 0) {
+                    continue;
+                }
+                int colon = spec.lastIndexOf(':');
+                String tag = colon < 0 ? spec : spec.substring(0, colon);
+                int level = colon < 0 ? 0 : parseLevel(spec.substring(colon + 1));
+                if (tag.equals("*")) {
+                    defaultLevel = level;
+                } else {
+                    rules.add(new Rule(ascii(tag), level));
+                }
+            }
+        }
+        this.rules = rules.toArray(new Rule[rules.size()]);
+        this.defaultLevel = defaultLevel;
+    }
+
+    private static int parseLevel(String level) {
+        if (level.length() == 0) {
+            return 0;
+        }
+        char c = Character.toUpperCase(level.charAt(0));
+        if (c == 'S') {
+            return LEVEL_SILENT;
+        }
+        int index = LEVELS.indexOf(c);
+        return index < 0 ? 0 : index;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int count) throws IOException {
+        int end = offset + count;
+        while (offset < end) {
+            int newline = offset;
+            while (newline < end && bytes[newline] != '\n') {
+                newline++;
+            }
+            boolean complete = newline < end;
+            int segment = (complete ? newline + 1 : end) - offset;
+
+            if (overlong) {
+                // too long to be a log line, just archive it
+                archive.write(bytes, offset, segment);
+                overlong = !complete;
+            } else if (length + segment > MAX_LINE_BYTES) {
+                archive.write(line, 0, length);
+                archive.write(bytes, offset, segment);
+                length = 0;
+                overlong = !complete;
+            } else {
+                append(bytes, offset, segment);
+                if (complete) {
+                    processLine();
+                    length = 0;
+                }
+            }
+            offset += segment;
+        }
+    }
+
+    private void append(byte[] bytes, int offset, int count) {
+        if (length + count > line.length) {
+            byte[] grown = new byte[Math.max(line.length * 2, length + count)];
+            System.arraycopy(line, 0, grown, 0, length);
+            line = grown;
+        }
+        System.arraycopy(bytes, offset, line, length, count);
+        length += count;
+    }
+
+    private void processLine() throws IOException {
+        int end = length;
+        if (end > 0 && line[end - 1] == '\n') {
+            end--;
+        }
+        if (end > 0 && line[end - 1] == '\r') {
+            end--;
+        }
+
+        if (!tokenize(end)) {
+            if (block != null && ++idleLines > BLOCK_IDLE_LINES) {
+                block = null;
+            }
+            archive.write(line, 0, length);
+            return;
+        }
+
+        if (level >= LEVEL_ERROR) {
+            String tag = new String(line, TAG_START, tagEnd - TAG_START, "UTF-8");
+            Integer count = errorCounts.get(tag);
+            errorCounts.put(tag, count == null ? 1 : count + 1);
+        }
+        trackCrash(end);
+        if (accepts()) {
+            archive.write(line, 0, length);
+        }
+    }
+
+    /**
+     * Finds level, tag, pid and message of the current line.
+     *
+     * @return {@code false} if the line does not look like <tt>logcat -v time</tt> output.
+     */
+    private boolean tokenize(int end) {
+        if (end < TAG_START + 4 || line[18] != ' ' || line[20] != '/') {
+            return false;
+        }
+        level = LEVELS.indexOf(line[19]);
+        if (level < 0) {
+            return false;
+        }
+
+        int close = -1;
+        for (int i = TAG_START + 1; i < end - 1; i++) {
+            if (line[i] == ')' && line[i + 1] == ':') {
+                close = i;
+                break;
+            }
+        }
+        if (close < 0) {
+            return false;
+        }
+        int open = close - 1;
+        while (open > TAG_START && line[open] != '(') {
+            open--;
+        }
+        if (line[open] != '(') {
+            return false;
+        }
+        // logcat pads short tags to 8 characters
+        tagEnd = open;
+        while (tagEnd > TAG_START && line[tagEnd - 1] == ' ') {
+            tagEnd--;
+        }
+
+        pid = 0;
+        for (int i = open + 1; i < close; i++) {
+            byte b = line[i];
+            if (b >= '0' && b <= '9') {
+                pid = pid * 10 + (b - '0');
+            }
+        }
+        messageStart = close + 2;
+        if (messageStart < end && line[messageStart] == ' ') {
+            messageStart++;
+        }
+        return true;
+    }
+
+    private void trackCrash(int end) throws IOException {
+        for (CrashKind kind : CrashKind.values()) {
+            if (tagEquals(kind.tag) && regionEquals(messageStart, end, kind.marker)) {
+                block = kind;
+                blockPid = pid;
+                idleLines = 0;
+                crashCounts[kind.ordinal()]++;
+                crashes().write(ascii("\n=== " + kind.label + " ===\n"));
+                crashes().write(line, 0, length);
+                return;
+            }
+        }
+
+        if (block != null) {
+            if (pid == blockPid && tagEquals(block.tag)) {
+                idleLines = 0;
+                crashes().write(line, 0, length);
+            } else if (++idleLines > BLOCK_IDLE_LINES) {
+                block = null;
+            }
+        }
+    }
+
+    private boolean accepts() {
+        for (Rule rule : rules) {
+            if (tagEquals(rule.tag)) {
+                return level >= rule.level;
+            }
+        }
+        return level >= defaultLevel;
+    }
+
+    private boolean tagEquals(byte[] tag) {
+        return tagEnd - TAG_START == tag.length && regionEquals(TAG_START, tagEnd, tag);
+    }
+
+    private boolean regionEquals(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (line[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private OutputStream crashes() throws IOException {
+        if (crashes == null) {
+            crashes = crashFile == null ? new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            } : new BufferedOutputStream(new FileOutputStream(crashFile));
+        }
+        return crashes;
+    }
+
+    public synchronized int getCrashCount(CrashKind kind) {
+        return crashCounts[kind.ordinal()];
+    }
+
+    /**
+     * @return How many lines of level E or above each tag logged.
+     */
+    public synchronized Map<String, Integer> getErrorCounts() {
+        return new TreeMap<String, Integer>(errorCounts);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        archive.flush();
+        if (crashes != null) {
+            crashes.flush();
+        }
+    }
+
+    /**
+     * Processes the last line even if incomplete, writes the counts to the crash report and closes both outputs.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (length > 0) {
+                processLine();
+                length = 0;
+            }
+            if (crashes != null || !errorCounts.isEmpty()) {
+                StringBuilder summary = new StringBuilder("\n=== Summary ===\n");
+                for (CrashKind kind : CrashKind.values()) {
+                    summary.append(kind.label).append(": ").append(crashCounts[kind.ordinal()]).append('\n');
+                }
+                summary.append("\nError lines per tag:\n");
+                for (Map.Entry<String, Integer> entry : errorCounts.entrySet()) {
+                    summary.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+                }
+                crashes().write(summary.toString().getBytes("UTF-8"));
+            }
+        } finally {
+            try {
+                if (crashes != null) {
+                    crashes.close();
+                }
+            } finally {
+                archive.close();
+            }
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
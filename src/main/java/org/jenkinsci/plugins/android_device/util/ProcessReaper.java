@@ -0,0 +1,98 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import hudson.Proc;
+import hudson.util.DaemonThreadFactory;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Terminates processes started by the plugin, on a small shared pool instead of a thread per process.
+ * <p>
+ * A process is asked to die with {@link Proc#kill()}. If it survives the timeout, or the kill request itself
+ * hangs on a dead channel, it is killed once more, which also catches children spawned meanwhile.
+ * After that it is given up on. While the pool is saturated, a kill attempt is skipped rather than run by the
+ * caller, so that a hanging kill never holds up the caller for longer than the timeout.
+ */
+public class ProcessReaper {
+    private static final Logger LOGGER = Logger.getLogger(ProcessReaper.class.getName());
+    private static final int KILL_ATTEMPTS = 2;
+    private static final int POLL_INTERVAL_MS = 50;
+    private static final ProcessReaper INSTANCE = new ProcessReaper(4, 64);
+
+    private final ThreadPoolExecutor executor;
+
+    ProcessReaper(int maxThreads, int maxQueued) {
+        // more kills than that are rejected rather than piling up threads
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(maxQueued), new DaemonThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static ProcessReaper get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Terminates the process, waiting at most {@code timeoutMs} for each kill attempt.
+     *
+     * @return The exit status of the process, or <code>null</code> if it is still running.
+     */
+    public Integer terminate(final Proc process, int timeoutMs) throws InterruptedException {
+        for (int attempt = 0; attempt < KILL_ATTEMPTS; attempt++) {
+            if (!isAlive(process)) {
+                return exitStatus(process);
+            }
+
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            try {
+                Future<Void> kill = executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        process.kill();
+                        return null;
+                    }
+                });
+                try {
+                    kill.get(timeoutMs, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.FINE, "Failed to kill " + process, e.getCause());
+                } catch (TimeoutException e) {
+                    kill.cancel(true);
+                    LOGGER.fine("Timed out killing " + process);
+                }
+            } catch (RejectedExecutionException e) {
+                // the process may still exit by itself, or be killed by the next attempt
+                LOGGER.fine("Too many kills pending, skipping a kill attempt of " + process);
+            }
+
+            while (isAlive(process) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        }
+
+        if (isAlive(process)) {
+            LOGGER.warning("Giving up on " + process + " which survived " + KILL_ATTEMPTS + " kill attempts");
+            return null;
+        }
+        return exitStatus(process);
+    }
+
+    private static boolean isAlive(Proc process) throws InterruptedException {
+        try {
+            return process.isAlive();
+        } catch (IOException e) {
+            // the channel to the process is gone, and so is the process as far as we can tell
+            return false;
+        }
+    }
+
+    private static Integer exitStatus(Proc process) throws InterruptedException {
+        try {
+            return process.join();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static org.jenkinsci.plugins.android_device.util.ReplaceFilterOutputStream.CR;
+import static org.jenkinsci.plugins.android_device.util.ReplaceFilterOutputStream.LF;
+
+/**
+ * {@link WritableByteChannel} counterpart of {@link ReplaceFilterOutputStream}, replacing CRLF with LF.
+ * Runs between the dropped CRs are handed to the target channel as slices of the source buffer, without copying.
+ */
+public class ReplaceFilterByteChannel implements WritableByteChannel {
+    private static final ByteBuffer CR_BUFFER = ByteBuffer.wrap(new byte[]{CR}).asReadOnlyBuffer();
+
+    private final WritableByteChannel channel;
+    private boolean lastHas0x0D;
+
+    public ReplaceFilterByteChannel(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Consumes all remaining bytes of {@code src}.
+     *
+     * @return The number of bytes consumed from {@code src}.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        final int start = src.position();
+        final int end = src.limit();
+        if (start == end) {
+            return 0;
+        }
+
+        if (lastHas0x0D) {
+            lastHas0x0D = false;
+            if (src.get(start) != LF) {
+                writeCR();
+            }
+        }
+
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            if (src.get(i) != CR) {
+                continue;
+            }
+            if (i + 1 == end) {
+                writeRun(src, runStart, i);
+                lastHas0x0D = true;
+                src.position(end);
+                return end - start;
+            }
+            if (src.get(i + 1) == LF) {
+                writeRun(src, runStart, i);
+                // the LF starts the next run
+                runStart = i + 1;
+                i++;
+            }
+        }
+        writeRun(src, runStart, end);
+        src.position(end);
+        return end - start;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Writes a CR held back from the end of the last buffer, then closes the target channel.
+     */
+    public void close() throws IOException {
+        try {
+            if (lastHas0x0D) {
+                writeCR();
+                lastHas0x0D = false;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeRun(ByteBuffer src, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        ByteBuffer run = src.duplicate();
+        run.limit(to);
+        run.position(from);
+        writeFully(run);
+    }
+
+    private void writeCR() throws IOException {
+        writeFully(CR_BUFFER.duplicate());
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -10,6 +10,9 @@ import java.io.OutputStream;
 
 // perl -pe 's/\x0D\x0A/\x0A/g'
 public class ReplaceFilterOutputStream extends FilterOutputStream {
+    static final byte CR = 0x0D;
+    static final byte LF = 0x0A;
+
     boolean lastHas0x0D;
 
     public ReplaceFilterOutputStream(OutputStream outputStream) {
@@ -19,41 +22,51 @@ public class ReplaceFilterOutputStream extends FilterOutputStream {
 
     @Override
     public void write(int i) throws IOException {
-        super.write(i);
+        write(new byte[]{(byte) i}, 0, 1);
     }
 
+    /**
+     * Writes everything between the dropped CRs with one bulk write per run.
+     * A CR at the end of the buffer is held back until we know what follows it.
+     */
     @Override
     public void write(byte[] bytes, int offset, int count) throws IOException {
-        for (int i = offset; i < offset + count; i++) {
-            Byte current = bytes[i];
-            if (current == 0x0D) {
-                if (i + 1 >= offset + count) {
-                    lastHas0x0D = true;
-                } else {
-                    if (bytes[i + 1] == 0x0A) {
-                        continue;
-                    } else {
-                        write(0x0D);
-                    }
-                }
-            } else if (lastHas0x0D) {
-                if (current == 0x0A) {
-                    write(current);
-                } else {
-                    write(0x0D);
-                    write(current);
-                }
-                lastHas0x0D = false;
-            } else {
-                write(current);
+        final int end = offset + count;
+        if (count <= 0) {
+            return;
+        }
+
+        if (lastHas0x0D) {
+            lastHas0x0D = false;
+            if (bytes[offset] != LF) {
+                out.write(CR);
+            }
+        }
+
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] != CR) {
+                continue;
+            }
+            if (i + 1 == end) {
+                out.write(bytes, runStart, i - runStart);
+                lastHas0x0D = true;
+                return;
+            }
+            if (bytes[i + 1] == LF) {
+                out.write(bytes, runStart, i - runStart);
+                // the LF starts the next run
+                runStart = i + 1;
+                i++;
             }
         }
+        out.write(bytes, runStart, end - runStart);
     }
 
     @Override
     public void flush() throws IOException {
         if (lastHas0x0D) {
-            write(0x0D);
+            out.write(CR);
             lastHas0x0D = false;
         }
 
@@ -0,0 +1,145 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips everything written into a series of files, starting a new file at the next line break
+ * once the current one holds {@code maxChunkBytes} of uncompressed data.
+ * <p>
+ * Files are named after the given file name with a chunk number, e.g. <tt>logcat-000.txt.gz</tt>,
+ * <tt>logcat-001.txt.gz</tt> for <tt>logcat.txt</tt>.
+ */
+public class RotatingGzipOutputStream extends OutputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File directory;
+    private final String fileName;
+    private final long maxChunkBytes;
+    private final List<File> chunks = new ArrayList<File>();
+    private OutputStream current;
+    private long currentBytes;
+    private long totalBytes;
+    private boolean closed;
+
+    public RotatingGzipOutputStream(File directory, String fileName, long maxChunkBytes) {
+        this.directory = directory;
+        this.fileName = fileName;
+        this.maxChunkBytes = maxChunkBytes;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int count) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        int end = offset + count;
+        while (offset < end) {
+            if (current == null) {
+                open();
+            }
+            int length = end - offset;
+            if (currentBytes >= maxChunkBytes) {
+                // finish the current line in this chunk so that every chunk starts with a whole line
+                int lineEnd = indexOf(bytes, offset, end, (byte) '\n');
+                if (lineEnd < 0) {
+                    writeChunk(bytes, offset, length);
+                    return;
+                }
+                length = lineEnd + 1 - offset;
+                writeChunk(bytes, offset, length);
+                rotate();
+            } else {
+                length = (int) Math.min(length, maxChunkBytes - currentBytes);
+                writeChunk(bytes, offset, length);
+            }
+            offset += length;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    /**
+     * Finishes the last chunk. If nothing was ever written, no file is left behind.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        if (totalBytes == 0) {
+            for (File chunk : chunks) {
+                chunk.delete();
+            }
+            chunks.clear();
+        }
+    }
+
+    /**
+     * @return The files written so far, oldest first.
+     */
+    public synchronized List<File> getChunks() {
+        return Collections.unmodifiableList(new ArrayList<File>(chunks));
+    }
+
+    /**
+     * @return How many uncompressed bytes were written.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void writeChunk(byte[] bytes, int offset, int length) throws IOException {
+        current.write(bytes, offset, length);
+        currentBytes += length;
+        totalBytes += length;
+    }
+
+    private void open() throws IOException {
+        File chunk = new File(directory, chunkName(chunks.size()));
+        current = new GZIPOutputStream(new FileOutputStream(chunk), BUFFER_SIZE);
+        currentBytes = 0;
+        chunks.add(chunk);
+    }
+
+    private void rotate() throws IOException {
+        current.close();
+        current = null;
+    }
+
+    String chunkName(int index) {
+        String number = String.format("%03d", index);
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 0) {
+            return fileName + "-" + number + ".gz";
+        }
+        return fileName.substring(0, dot) + "-" + number + fileName.substring(dot) + ".gz";
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
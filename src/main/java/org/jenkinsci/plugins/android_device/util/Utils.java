@@ -11,9 +11,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
@@ -28,10 +26,23 @@ public class Utils {
      * @return Environment variables for the current computer, with the build variables taking precedence.
      */
     public static EnvVars getEnvironment(AbstractBuild<?, ?> build, BuildListener listener) {
+        return getEnvironment(Computer.currentComputer(), build, listener);
+    }
+
+    /**
+     * Gets a combined set of environment variables for the given computer and build.
+     * Use this from threads other than the build executor, where there is no current computer.
+     *
+     * @param computer The computer the build runs on.
+     * @param build    The build for which we should retrieve environment variables.
+     * @param listener The listener used to get the environment variables.
+     * @return Environment variables for the given computer, with the build variables taking precedence.
+     */
+    public static EnvVars getEnvironment(Computer computer, AbstractBuild<?, ?> build, BuildListener listener) {
         final EnvVars envVars = new EnvVars();
         try {
-            // Get environment of the local computer
-            EnvVars localVars = Computer.currentComputer().getEnvironment();
+            // Get environment of the build computer
+            EnvVars localVars = computer.getEnvironment();
             envVars.putAll(localVars);
 
             // Add variables specific to this build
@@ -73,33 +84,59 @@ public class Utils {
      * Attempts to kill the given process, timing-out after {@code timeoutMs}.
      *
      * @param process   The process to kill.
-     * @param timeoutMs How long to wait for before cancelling the attempt to kill the process.
+     * @param timeoutMs How long to wait for each attempt to kill the process.
      * @return {@code true} if the process was killed successfully.
+     * @see ProcessReaper
      */
     public static boolean killProcess(final Proc process, final int timeoutMs) {
-        Boolean result = null;
-        FutureTask<Boolean> task = null;
         try {
-            // Attempt to kill the process; remoting will be handled by the process object
-            task = new FutureTask<Boolean>(new java.util.concurrent.Callable<Boolean>() {
-                public Boolean call() throws Exception {
-                    process.kill();
-                    return true;
-                }
-            });
+            return ProcessReaper.get().terminate(process, timeoutMs) != null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            // Execute the task asynchronously and wait for a result or timeout
-            Executors.newSingleThreadExecutor().execute(task);
-            result = task.get(timeoutMs, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Ignore
-        } finally {
-            if (task != null && !task.isDone()) {
-                task.cancel(true);
+    /**
+     * Compares SDK package revisions such as <tt>21.1.2</tt> or <tt>22.0.0 rc1</tt> component by component.
+     * A preview ranks below the final release of the same revision.
+     *
+     * @return Negative, zero or positive as the first revision is older, the same or newer than the second.
+     */
+    public static int compareRevisions(String a, String b) {
+        int[] first = parseRevision(a);
+        int[] second = parseRevision(b);
+        for (int i = 0; i < Math.max(first.length, second.length); i++) {
+            int x = i < first.length ? first[i] : 0;
+            int y = i < second.length ? second[i] : 0;
+            if (x != y) {
+                return x < y ? -1 : 1;
             }
         }
+        boolean firstPreview = isPreviewRevision(a);
+        boolean secondPreview = isPreviewRevision(b);
+        if (firstPreview != secondPreview) {
+            return firstPreview ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return The numeric components of a revision; components not starting with a digit count as 0.
+     */
+    public static int[] parseRevision(String revision) {
+        String[] parts = revision.trim().split("\\.");
+        int[] components = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            Matcher matcher = REVISION.matcher(parts[i]);
+            components[i] = matcher.matches() ? Integer.parseInt(matcher.group(1)) : 0;
+        }
+        return components;
+    }
 
-        return Boolean.TRUE.equals(result);
+    private static boolean isPreviewRevision(String revision) {
+        String lower = revision.toLowerCase();
+        return lower.contains("rc") || lower.contains("preview");
     }
 
     public static boolean isUnix() {
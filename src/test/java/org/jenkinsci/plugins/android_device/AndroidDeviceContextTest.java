@@ -1,12 +1,17 @@
 package org.jenkinsci.plugins.android_device;
 
+import hudson.model.BuildListener;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class AndroidDeviceContextTest {
 //
@@ -28,13 +33,21 @@ public class AndroidDeviceContextTest {
         String ip = "10.203.202.178";
         int port = 5555;
         final String[] called = new String[1];
+        BuildListener listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(new ByteArrayOutputStream()));
 
-        AndroidDeviceContext deviceMock = new AndroidDeviceContext(null, null, null, null, ip, port) {
+        AndroidDeviceContext deviceMock = new AndroidDeviceContext(null, null, listener, null, ip, port) {
             @Override
             public void sendCommand(String command, int timeout) throws IOException, InterruptedException {
                 called[0] = command;
             }
 
+            @Override
+            String adb(String command, int timeout) throws IOException, InterruptedException {
+                called[0] = command;
+                return "connected to " + command.substring(command.indexOf(' ') + 1);
+            }
+
             @Override
             public void sendCommandWithSerial(String command, int timeout_in_ms) throws IOException, InterruptedException {
                 called[0] = command;
@@ -54,4 +67,18 @@ public class AndroidDeviceContextTest {
         assertThat(called[0], is(equalTo(String.format("disconnect %s:%d", ip, port))));
 
     }
-}
\ No newline at end of file
+
+    @Test(expected = IOException.class)
+    public void testUnreachableDevice() throws Exception {
+        BuildListener listener = mock(BuildListener.class);
+        when(listener.getLogger()).thenReturn(new PrintStream(new ByteArrayOutputStream()));
+
+        AndroidDeviceContext device = new AndroidDeviceContext(null, null, listener, null, "10.203.202.178", 5555) {
+            @Override
+            String adb(String command, int timeout) throws IOException, InterruptedException {
+                return "unable to connect to 10.203.202.178:5555: Connection refused";
+            }
+        };
+        device.connect(5000);
+    }
+}
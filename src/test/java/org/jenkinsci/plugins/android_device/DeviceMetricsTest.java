@@ -0,0 +1,28 @@
+package org.jenkinsci.plugins.android_device;
+
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class DeviceMetricsTest {
+
+    @Test
+    public void testStagesByTagAndFarm() {
+        DeviceMetrics.recordStage(StageTimer.ACQUISITION, "metrics-tag", "http://farm-a", 1000);
+        DeviceMetrics.recordStage(StageTimer.ACQUISITION, "metrics-tag", "http://farm-b", 3000);
+        DeviceMetrics.count(DeviceMetrics.FAILED_TIMEOUT, "metrics-tag", "http://farm-a");
+
+        JSONObject json = DeviceMetrics.toJson();
+        JSONObject acquisition = json.getJSONObject("histograms").getJSONObject(StageTimer.ACQUISITION);
+        JSONObject byTag = acquisition.getJSONObject(DeviceMetrics.DIMENSION_TAG).getJSONObject("metrics-tag");
+        assertThat(byTag.getLong("count"), is(2L));
+        assertThat(byTag.getLong("max"), is(3000L));
+        JSONObject byFarm = acquisition.getJSONObject(DeviceMetrics.DIMENSION_FARM).getJSONObject("http://farm-b");
+        assertThat(byFarm.getLong("p99"), is(3000L));
+
+        JSONObject timeouts = json.getJSONObject("counters").getJSONObject(DeviceMetrics.FAILED_TIMEOUT);
+        assertThat(timeouts.getJSONObject(DeviceMetrics.DIMENSION_TAG).getLong("metrics-tag"), is(1L));
+    }
+}
@@ -0,0 +1,71 @@
+package org.jenkinsci.plugins.android_device;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HealthReportTest {
+
+    private static final String HEALTHY = "[storage]\n"
+            + "Filesystem            1K-blocks    Used Available Use% Mounted on\n"
+            + "/dev/block/dm-0         5127828 1234567   3893261  25% /data\n"
+            + "[battery]\n"
+            + "Current Battery Service state:\n"
+            + "  AC powered: false\n"
+            + "  level: 85\n"
+            + "  scale: 100\n"
+            + "[pm]\n"
+            + "package:/system/framework/framework-res.apk\n"
+            + "[boot]\n"
+            + "1\n"
+            + "[screen]\n"
+            + "  mWakefulness=Awake\n";
+
+    @Test
+    public void testParse() {
+        HealthReport report = HealthReport.parse(HEALTHY);
+        assertThat(report.freeStorageKb, is(3893261L));
+        assertThat(report.batteryLevel, is(85));
+        assertThat(report.packageManager, is(true));
+        assertThat(report.bootCompleted, is(true));
+        assertThat(report.screenOn, is(true));
+        assertThat(report.problems(100, 20), is(empty()));
+    }
+
+    @Test
+    public void testToolboxStorage() {
+        assertThat(HealthReport.parseFreeStorageKb("Filesystem    Size   Used   Free   Blksize\n/data         1.9G   1.2G   700.0M 4096\n"),
+                is(700L * 1024));
+        assertThat(HealthReport.parseFreeStorageKb("/data: 1024000K total, 500000K used, 524000K available (block size 4096)\n"),
+                is(524000L));
+        assertThat(HealthReport.parseFreeStorageKb("df: /data: Permission denied\n"), is(-1L));
+    }
+
+    @Test
+    public void testScreen() {
+        assertThat(HealthReport.parseScreenOn("  mScreenOn=false\n"), is(false));
+        assertThat(HealthReport.parseScreenOn("Display Power: state=ON\n"), is(true));
+        assertThat(HealthReport.parseScreenOn("Can't find service: power\n"), is(nullValue()));
+    }
+
+    @Test
+    public void testNoAnswerIsUnhealthy() {
+        HealthReport report = HealthReport.parse("");
+        assertThat(report.freeStorageKb, is(-1L));
+        assertThat(report.batteryLevel, is(-1));
+        // not booted and no package manager, unknown storage and battery are not held against it
+        assertThat(report.problems(100, 20), hasSize(2));
+    }
+
+    @Test
+    public void testThresholds() {
+        HealthReport report = new HealthReport(50 * 1024, 10, true, true, true);
+        assertThat(report.problems(100, 20), hasSize(2));
+        assertThat(report.problems(40, 20), hasSize(1));
+        assertThat(report.problems(0, 0), is(empty()));
+    }
+}
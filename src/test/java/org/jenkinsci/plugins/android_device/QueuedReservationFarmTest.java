@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.android_device;
+
+import org.jenkinsci.plugins.android_device.api.DeviceFarmApiImpl;
+import org.jenkinsci.plugins.android_device.api.FakeDeviceFarm;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Runs queued reservations against the fake farm, as the queue dispatcher and the sweeper drive them.
+ */
+public class QueuedReservationFarmTest {
+    private static int PORT = 11267;
+    private FakeDeviceFarm farm;
+    private QueuedReservation reservation;
+
+    @After
+    public void tearDown() throws Exception {
+        if (reservation != null && reservation.getApi() != null) {
+            reservation.getApi().disconnect();
+        }
+        farm.stop();
+        PORT += 10;
+    }
+
+    private QueuedReservation reserve() {
+        reservation = new QueuedReservation("http://localhost:" + PORT, "", "http://jenkins/job/test/queue/1", 1, 0, 60000);
+        reservation.start(new DeviceFarmApiImpl());
+        return reservation;
+    }
+
+    private void startFarm(int deviceCount) {
+        farm = new FakeDeviceFarm(PORT, deviceCount);
+        farm.start();
+    }
+
+    private void waitFor(int queueLength, int releaseMessages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((farm.queueLength() != queueLength || farm.releaseMessages() != releaseMessages)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(farm.queueLength(), is(queueLength));
+        assertThat(farm.releaseMessages(), is(releaseMessages));
+    }
+
+    @Test
+    public void testItemRunsOnceDeviceIsReserved() throws Exception {
+        startFarm(1);
+        QueuedReservation reservation = reserve();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (QueuedReservation.Dispatcher.blockage(reservation) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(QueuedReservation.Dispatcher.blockage(reservation), nullValue());
+
+        List<RemoteDevice> devices = reservation.claim();
+        assertThat(devices, hasSize(1));
+        assertThat(devices.get(0).ip, is(FakeDeviceFarm.DEVICE_HOST));
+    }
+
+    @Test
+    public void testRemovedItemIsReleased() throws Exception {
+        startFarm(0);
+        QueuedReservation reservation = reserve();
+        waitFor(1, 0);
+        assertThat(QueuedReservation.Dispatcher.blockage(reservation), notNullValue());
+
+        // the item was cancelled; the first sweep gives it the benefit of the doubt of a starting build
+        QueuedReservation.Sweeper sweeper = new QueuedReservation.Sweeper();
+        sweeper.sweep(Collections.<QueuedReservation>emptySet());
+        waitFor(1, 0);
+        sweeper.sweep(Collections.<QueuedReservation>emptySet());
+        waitFor(0, 1);
+    }
+}
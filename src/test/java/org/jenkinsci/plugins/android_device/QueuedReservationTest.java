@@ -0,0 +1,127 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.Launcher;
+import hudson.model.AbstractProject;
+import org.jenkinsci.plugins.android_device.api.DeviceFarmApi;
+import org.jenkinsci.plugins.android_device.api.NoDeviceAvailableException;
+import org.jenkinsci.plugins.android_device.api.ReservationRequest;
+import org.junit.Test;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.*;
+
+public class QueuedReservationTest {
+
+    private QueuedReservation reservation(int deviceCount, int waitTimeoutMs) {
+        return new QueuedReservation("http://farm", "nexus", "http://jenkins/job/test/1", deviceCount, 0, waitTimeoutMs);
+    }
+
+    @Test
+    public void testBlockedUntilAllDevicesReserved() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+        RemoteDevice first = new RemoteDevice("10.0.0.1", 5555, "");
+        RemoteDevice second = new RemoteDevice("10.0.0.2", 5555, "");
+        when(api.pollApiResponse(any(PrintStream.class))).thenReturn(null, first, null, second);
+
+        QueuedReservation reservation = reservation(2, 60000);
+        reservation.start(api);
+        verify(api).connectApiServer(any(PrintStream.class), eq("http://farm"), any(ReservationRequest.class), anyLong());
+
+        assertThat(reservation.poll(), is(false));
+        assertThat(reservation.poll(), is(false));
+        assertThat(reservation.poll(), is(true));
+
+        List<RemoteDevice> devices = reservation.claim();
+        assertThat(devices, contains(first, second));
+        assertThat(reservation.getApi(), sameInstance(api));
+
+        // the build owns the session now
+        reservation.release();
+        verify(api, never()).disconnect();
+    }
+
+    @Test
+    public void testWarmLeaseSkipsQueuedReservation() throws Exception {
+        AndroidRemote wrapper = new AndroidRemote("http://farm", "nexus", 1, true, ReservationRequest.DEFAULT_PRIORITY, 0,
+                60, 0, 0, null, false, 0, 0);
+        AbstractProject project = mock(AbstractProject.class);
+        when(project.getFullName()).thenReturn("warm");
+        WarmLeasePool.get().park(WarmLeasePool.key("warm", "node", "nexus", 1),
+                new WarmLeasePool.WarmLease(mock(DeviceFarmApi.class), Collections.singletonList(new RemoteDevice("10.0.0.1", 5555, "")),
+                        mock(Launcher.class)), 60);
+        try {
+            // the next build takes over the parked devices instead of asking the farm for others
+            assertThat(wrapper.reserveWhileQueued(project, 1, null), nullValue());
+        } finally {
+            WarmLeasePool.get().take(WarmLeasePool.key("warm", "node", "nexus", 1));
+        }
+    }
+
+    @Test
+    public void testFailureIsRethrownToTheBuild() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+        when(api.pollApiResponse(any(PrintStream.class))).thenThrow(new NoDeviceAvailableException("no such device"));
+
+        QueuedReservation reservation = reservation(1, 60000);
+        reservation.start(api);
+        assertThat(reservation.poll(), is(true));
+        verify(api).disconnect();
+
+        try {
+            reservation.claim();
+            fail();
+        } catch (NoDeviceAvailableException expected) {
+        }
+    }
+
+    @Test
+    public void testGivesUpAfterWaitTimeout() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+
+        QueuedReservation reservation = reservation(1, 0);
+        reservation.start(api);
+        assertThat(reservation.poll(), is(true));
+        verify(api).disconnect();
+    }
+
+    @Test
+    public void testReleaseUnclaimed() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+
+        QueuedReservation reservation = reservation(1, 60000);
+        reservation.start(api);
+        assertThat(reservation.poll(), is(false));
+
+        reservation.release();
+        reservation.release();
+        verify(api, times(1)).disconnect();
+    }
+
+    @Test
+    public void testUnsettledReservationIsNotClaimed() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+
+        QueuedReservation reservation = reservation(1, 60000);
+        reservation.start(api);
+        reservation.poll();
+
+        assertThat(reservation.claim(), nullValue());
+        verify(api).disconnect();
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        QueuedReservation reservation = reservation(2, 60000);
+        assertThat(reservation.matches("http://farm", "nexus", 2), is(true));
+        assertThat(reservation.matches("http://farm", "galaxy", 2), is(false));
+        assertThat(reservation.matches("http://farm", "nexus", 1), is(false));
+    }
+}
@@ -0,0 +1,86 @@
+package org.jenkinsci.plugins.android_device;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class ScreenTimelineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AndroidDeviceContext device(String... frames) throws Exception {
+        final Queue<String> queue = new LinkedList<String>(Arrays.asList(frames));
+        AndroidDeviceContext device = mock(AndroidDeviceContext.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                String frame = queue.poll();
+                if (frame != null) {
+                    ((OutputStream) invocation.getArguments()[0]).write(frame.getBytes("UTF-8"));
+                }
+                return null;
+            }
+        }).when(device).screenshot(any(OutputStream.class), anyInt(), anyInt());
+        return device;
+    }
+
+    @Test
+    public void testIdenticalFramesAreStoredOnce() throws Exception {
+        File file = new File(folder.getRoot(), "timeline.zip");
+        ScreenTimeline timeline = new ScreenTimeline(device("home", "home", "app", "home"), file, 0);
+        timeline.start(3600);
+        for (int i = 0; i < 4; i++) {
+            timeline.capture();
+        }
+        timeline.stop();
+
+        List<String> entries = new ArrayList<String>();
+        List<String> changes = new ArrayList<String>();
+        ZipInputStream zip = new ZipInputStream(new FileInputStream(file));
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries.add(entry.getName());
+                if (entry.getName().equals(ScreenTimeline.INDEX_ENTRY)) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(zip, "UTF-8"));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        changes.add(line.substring(line.indexOf('\t') + 1));
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+        assertThat(entries, contains("frame-00000.png", "frame-00001.png", ScreenTimeline.INDEX_ENTRY));
+        assertThat(changes, contains("frame-00000.png", "frame-00001.png", "frame-00000.png"));
+    }
+
+    @Test
+    public void testNoFileWithoutFrames() throws Exception {
+        File file = new File(folder.getRoot(), "timeline.zip");
+        ScreenTimeline timeline = new ScreenTimeline(device(), file, 0);
+        timeline.start(3600);
+        timeline.capture();
+        timeline.stop();
+
+        assertThat(file.exists(), is(false));
+    }
+}
@@ -0,0 +1,94 @@
+package org.jenkinsci.plugins.android_device;
+
+import hudson.Launcher;
+import org.jenkinsci.plugins.android_device.api.DeviceFarmApi;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class WarmLeasePoolTest {
+
+    private WarmLeasePool.WarmLease lease(DeviceFarmApi api) {
+        return new WarmLeasePool.WarmLease(api, Collections.singletonList(new RemoteDevice("10.20.30.40", 5555, "")),
+                mock(Launcher.class));
+    }
+
+    @Test
+    public void testTakeParkedLease() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+        WarmLeasePool.WarmLease lease = lease(api);
+        WarmLeasePool.get().park("job@node#tagx1", lease, 60);
+
+        assertThat(WarmLeasePool.get().take("job@node#tagx1"), sameInstance(lease));
+        assertThat(WarmLeasePool.get().take("job@node#tagx1"), nullValue());
+        verify(api, never()).disconnect();
+    }
+
+    @Test
+    public void testParkedForJobOnAnyNode() throws Exception {
+        WarmLeasePool.get().park(WarmLeasePool.key("parked", "node", "nexus", 2), lease(mock(DeviceFarmApi.class)), 60);
+
+        assertThat(WarmLeasePool.get().isParked("parked", "nexus", 2), is(true));
+        assertThat(WarmLeasePool.get().isParked("parked", "nexus", 1), is(false));
+        assertThat(WarmLeasePool.get().isParked("parked", "nex", 2), is(false));
+        assertThat(WarmLeasePool.get().isParked("park", "nexus", 2), is(false));
+        WarmLeasePool.get().take(WarmLeasePool.key("parked", "node", "nexus", 2));
+        assertThat(WarmLeasePool.get().isParked("parked", "nexus", 2), is(false));
+    }
+
+    @Test
+    public void testReleasedAfterIdleTime() throws Exception {
+        DeviceFarmApi api = mock(DeviceFarmApi.class);
+        WarmLeasePool.get().park("idle@node#tagx1", lease(api), 1);
+
+        verify(api, timeout(5000)).disconnect();
+        assertThat(WarmLeasePool.get().take("idle@node#tagx1"), nullValue());
+    }
+
+    @Test
+    public void testParkingAgainReleasesPrevious() throws Exception {
+        DeviceFarmApi first = mock(DeviceFarmApi.class);
+        DeviceFarmApi second = mock(DeviceFarmApi.class);
+        WarmLeasePool.get().park("again@node#tagx1", lease(first), 60);
+        WarmLeasePool.get().park("again@node#tagx1", lease(second), 60);
+
+        verify(first).disconnect();
+        WarmLeasePool.WarmLease taken = WarmLeasePool.get().take("again@node#tagx1");
+        assertThat(taken.api, sameInstance(second));
+    }
+
+    @Test
+    public void testPreviousReleasedOutsideOfPoolLock() throws Exception {
+        final boolean[] taken = new boolean[1];
+        DeviceFarmApi first = mock(DeviceFarmApi.class);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                // another build asking the pool while the lease is being released must not wait for it
+                Thread other = new Thread() {
+                    @Override
+                    public void run() {
+                        WarmLeasePool.get().take("other@node#tagx1");
+                        taken[0] = true;
+                    }
+                };
+                other.start();
+                other.join(5000);
+                return null;
+            }
+        }).when(first).disconnect();
+        WarmLeasePool.get().park("locked@node#tagx1", lease(first), 60);
+        WarmLeasePool.get().park("locked@node#tagx1", lease(mock(DeviceFarmApi.class)), 60);
+
+        verify(first).disconnect();
+        assertThat(taken[0], is(true));
+        WarmLeasePool.get().take("locked@node#tagx1");
+    }
+}
@@ -0,0 +1,34 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class AdbCallablesTest {
+
+    @Test
+    public void testInstalledPath() {
+        assertThat(AdbCallables.installedPath("package:/data/app/com.example-1/base.apk\r\n"),
+                is("/data/app/com.example-1/base.apk"));
+        assertThat(AdbCallables.installedPath(""), nullValue());
+    }
+
+    @Test
+    public void testMd5() throws Exception {
+        File file = File.createTempFile("app", ".apk");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("apk content".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        assertThat(DeviceFile.of(file).md5, is("a5039b0092fdd71e5d079a87a091ca83"));
+    }
+}
@@ -0,0 +1,210 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AdbClientTest {
+    public static final String SERIAL = "10.20.30.40:5555";
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    /**
+     * Whether the device is older than Android 7 and has no <tt>cmd</tt>.
+     */
+    private volatile boolean withoutCmd;
+
+    @Before
+    public void setUp() throws Exception {
+        serverSocket = new ServerSocket(0);
+        serverThread = new Thread(new Runnable() {
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        serve(serverSocket.accept());
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        serverSocket.close();
+    }
+
+    /**
+     * Answers like an adb server with one device attached.
+     */
+    private void serve(Socket socket) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String service;
+            do {
+                service = readRequest(in);
+                requests.add(service);
+                if (service.equals("host:devices")) {
+                    reply(out, "OKAY", SERIAL + "\tdevice\n");
+                } else if (service.equals("host:track-devices")) {
+                    out.write("OKAY".getBytes("UTF-8"));
+                    writeLengthPrefixed(out, SERIAL + "\toffline\n");
+                    writeLengthPrefixed(out, "emulator-5554\tdevice\n" + SERIAL + "\tdevice\n");
+                    in.read();
+                } else if (service.equals("host:transport:" + SERIAL)) {
+                    out.write("OKAY".getBytes("UTF-8"));
+                } else if (service.startsWith("exec:cmd package install -r -S ") && withoutCmd) {
+                    out.write("OKAY".getBytes("UTF-8"));
+                    out.write("/system/bin/sh: cmd: not found\n".getBytes("UTF-8"));
+                } else if (service.startsWith("exec:cmd package install -r -S ") || service.startsWith("exec:pm install -r -S ")) {
+                    out.write("OKAY".getBytes("UTF-8"));
+                    byte[] apk = new byte[Integer.parseInt(service.substring(service.lastIndexOf(' ') + 1))];
+                    in.readFully(apk);
+                    out.write(("Success " + new String(apk, "UTF-8") + "\n").getBytes("UTF-8"));
+                } else if (service.startsWith("shell:")) {
+                    out.write("OKAY".getBytes("UTF-8"));
+                    out.write(("ran " + service.substring(6) + "\r\n").getBytes("UTF-8"));
+                } else {
+                    reply(out, "FAIL", "unknown service");
+                    break;
+                }
+            } while (service.startsWith("host:transport:"));
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String readRequest(DataInputStream in) throws IOException {
+        byte[] length = new byte[4];
+        in.readFully(length);
+        byte[] payload = new byte[Integer.parseInt(new String(length, "UTF-8"), 16)];
+        in.readFully(payload);
+        return new String(payload, "UTF-8");
+    }
+
+    private static void reply(OutputStream out, String status, String payload) throws IOException {
+        out.write(status.getBytes("UTF-8"));
+        writeLengthPrefixed(out, payload);
+    }
+
+    private static void writeLengthPrefixed(OutputStream out, String payload) throws IOException {
+        out.write(String.format("%04x", payload.length()).getBytes("UTF-8"));
+        out.write(payload.getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private AdbClient client() {
+        return new AdbClient("127.0.0.1", serverSocket.getLocalPort());
+    }
+
+    @Test
+    public void testHostDevices() throws Exception {
+        String devices = client().hostRequest("host:devices", 1000);
+        assertThat(devices, is(equalTo(SERIAL + "\tdevice\n")));
+    }
+
+    @Test
+    public void testQuote() {
+        assertThat(AdbClient.quote("/sdcard/a b"), is(equalTo("'/sdcard/a b'")));
+        assertThat(AdbClient.quote("it's; reboot"), is(equalTo("'it'\\''s; reboot'")));
+    }
+
+    @Test
+    public void testShellThroughTransport() throws Exception {
+        String output = client().shell(SERIAL, "getprop sys.boot_completed", 1000);
+        assertThat(output, is(equalTo("ran getprop sys.boot_completed\r\n")));
+        assertThat(requests, contains("host:transport:" + SERIAL, "shell:getprop sys.boot_completed"));
+    }
+
+    private File apk() throws IOException {
+        File apk = File.createTempFile("app", ".apk");
+        apk.deleteOnExit();
+        OutputStream out = new FileOutputStream(apk);
+        try {
+            out.write("apk content".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return apk;
+    }
+
+    @Test
+    public void testStreamedInstall() throws Exception {
+        String output = client().install(SERIAL, apk(), 1000);
+        assertThat(output, is(equalTo("Success apk content\n")));
+        assertThat(requests, contains("host:transport:" + SERIAL, "exec:cmd package install -r -S 11"));
+    }
+
+    @Test
+    public void testStreamedInstallWithoutCmd() throws Exception {
+        withoutCmd = true;
+        String output = client().install(SERIAL, apk(), 1000);
+        assertThat(output, is(equalTo("Success apk content\n")));
+        assertThat(requests, contains("host:transport:" + SERIAL, "exec:cmd package install -r -S 11",
+                "host:transport:" + SERIAL, "exec:pm install -r -S 11"));
+    }
+
+    @Test
+    public void testWaitForDeviceFollowsTrackDevices() throws Exception {
+        client().waitForDevice(SERIAL, 1000);
+        assertThat(requests, contains("host:track-devices"));
+    }
+
+    @Test
+    public void testWaitForDeviceTimeout() throws Exception {
+        try {
+            client().waitForDevice("10.20.30.40:5556", 500);
+            fail();
+        } catch (SocketTimeoutException e) {
+        }
+    }
+
+    @Test
+    public void testHasState() throws Exception {
+        String devices = "emulator-5554\toffline\n" + SERIAL + "\tdevice\n";
+        assertThat(AdbClient.hasState(devices, SERIAL, "device"), is(true));
+        assertThat(AdbClient.hasState(devices, "emulator-5554", "device"), is(false));
+    }
+
+    @Test
+    public void testFailReply() throws Exception {
+        try {
+            client().hostRequest("host:unknown", 1000);
+            fail();
+        } catch (AdbException e) {
+            assertThat(e.getMessage(), is(equalTo("host:unknown: unknown service")));
+        }
+    }
+
+    @Test
+    public void testServerNotRunning() throws Exception {
+        int port = serverSocket.getLocalPort();
+        serverSocket.close();
+        try {
+            new AdbClient("127.0.0.1", port).hostRequest("host:devices", 1000);
+            fail();
+        } catch (AdbException e) {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.android_device.adb;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.*;
+import static org.mockito.Mockito.*;
+
+public class FileSyncTest {
+    private static final String SERIAL = "10.20.30.40:5555";
+    private static final String REMOTE = "/sdcard/fixture.bin";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private AdbClient client;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws Exception {
+        client = mock(AdbClient.class);
+        when(client.shell(eq(SERIAL), startsWith("stat "), anyInt())).thenReturn("3145738 1412345678\n");
+        when(client.shell(eq(SERIAL), startsWith("dd "), anyInt())).thenReturn("patched\n");
+
+        content = new byte[DeviceFile.CHUNK_BYTES * 3 + 10];
+        Arrays.fill(content, (byte) 'a');
+        file = folder.newFile("fixture.bin");
+        write();
+    }
+
+    private void write() throws Exception {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testChunkHashes() throws Exception {
+        DeviceFile hashed = DeviceFile.of(file);
+        assertThat(hashed.size, is((long) content.length));
+        assertThat(hashed.chunkMd5s.length, is(4));
+        assertThat(hashed.chunkMd5s[0], is(hashed.chunkMd5s[1]));
+    }
+
+    @Test
+    public void testUnchangedFileNotSent() throws Exception {
+        FileSync sync = new FileSync(client, SERIAL, 1000);
+        DeviceFile first = sync.push(file, REMOTE, null);
+        assertThat(first.transferred, is((long) content.length));
+
+        DeviceFile second = sync.push(file, REMOTE, first);
+        assertThat(second.transferred, is(0L));
+        verify(client, times(1)).push(eq(SERIAL), any(InputStream.class), eq(REMOTE), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testOnlyChangedChunkSent() throws Exception {
+        FileSync sync = new FileSync(client, SERIAL, 1000);
+        DeviceFile first = sync.push(file, REMOTE, null);
+
+        content[DeviceFile.CHUNK_BYTES + 1] = 'b';
+        write();
+        DeviceFile second = sync.push(file, REMOTE, first);
+
+        assertThat(second.transferred, is((long) DeviceFile.CHUNK_BYTES));
+        verify(client).shell(eq(SERIAL), startsWith("dd if='" + FileSync.chunkPath(REMOTE, 1) + "' of='" + REMOTE + "'"), anyInt());
+        verify(client, times(1)).push(eq(SERIAL), any(InputStream.class), eq(REMOTE), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testPathsQuoted() throws Exception {
+        String remote = "/sdcard/my app's $(reboot).bin";
+        FileSync sync = new FileSync(client, SERIAL, 1000);
+        DeviceFile first = sync.push(file, remote, null);
+
+        content[1] = 'b';
+        write();
+        sync.push(file, remote, first);
+
+        verify(client, atLeastOnce()).shell(eq(SERIAL), eq("stat -c '%s %Y' '/sdcard/my app'\\''s $(reboot).bin' 2>/dev/null"), anyInt());
+        verify(client).shell(eq(SERIAL), contains(" of='/sdcard/my app'\\''s $(reboot).bin' "), anyInt());
+    }
+
+    @Test
+    public void testChunkPathsNotShared() {
+        assertThat(FileSync.chunkPath(REMOTE, 1), not(equalTo(FileSync.chunkPath(REMOTE, 2))));
+        assertThat(FileSync.chunkPath(REMOTE, 1), not(equalTo(FileSync.chunkPath("/sdcard/other/fixture.bin", 1))));
+    }
+
+    @Test
+    public void testReflashedDeviceGetsWholeFile() throws Exception {
+        FileSync sync = new FileSync(client, SERIAL, 1000);
+        DeviceFile first = sync.push(file, REMOTE, null);
+
+        when(client.shell(eq(SERIAL), startsWith("stat "), anyInt())).thenReturn("");
+        DeviceFile second = sync.push(file, REMOTE, first);
+
+        assertThat(second.transferred, is((long) content.length));
+        verify(client, times(2)).push(eq(SERIAL), any(InputStream.class), eq(REMOTE), anyInt(), anyInt());
+    }
+
+    @Test
+    public void testParseStat() {
+        assertThat(FileSync.parseStat("stat: not found"), nullValue());
+        assertThat(FileSync.parseStat("12 34\r\n")[1], is(34L));
+    }
+}
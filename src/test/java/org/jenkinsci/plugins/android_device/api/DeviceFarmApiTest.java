@@ -117,6 +117,44 @@ public class DeviceFarmApiTest {
         waitDisconnect();
     }
 
+    @Test
+    public void testResponseWithoutWaitingCheckInterval() throws Exception, FailedToConnectApiServerException, MalformedResponseException, NoDeviceAvailableException {
+        server.addEventListener(DeviceFarmApi.KEY_JEN_DEVICE, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient socketIOClient, String jenDevice, AckRequest ackRequest) throws Exception {
+                socketIOClient.sendEvent(DeviceFarmApi.KEY_SVC_DEVICE, "{\"ip\":\"" + DEVICE_HOST + "\",\"port\":\"" + DEVICE_PORT + "\",\"tag\":\"TEST-365\"}");
+            }
+        });
+
+        DeviceFarmApi api = connect(String.format("http://%s:%d", HOST, PORT), DEFAULT_CONNECT_TIMEOUT);
+        long start = System.currentTimeMillis();
+        RemoteDevice remoteDevice = api.waitApiResponse(logger(), 20000, 10000);
+
+        assertThat(remoteDevice.ip, is(equalTo(DEVICE_HOST)));
+        assertThat(System.currentTimeMillis() - start < 10000, is(true));
+        api.disconnect();
+        waitDisconnect();
+    }
+
+    @Test
+    public void testMultipleDevicesOverOneSession() throws Exception, FailedToConnectApiServerException, MalformedResponseException, NoDeviceAvailableException {
+        final int[] nextPort = {DEVICE_PORT};
+        server.addEventListener(DeviceFarmApi.KEY_JEN_DEVICE, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient socketIOClient, String jenDevice, AckRequest ackRequest) throws Exception {
+                socketIOClient.sendEvent(DeviceFarmApi.KEY_SVC_DEVICE, "{\"ip\":\"" + DEVICE_HOST + "\",\"port\":\"" + nextPort[0]++ + "\",\"tag\":\"TEST-365\"}");
+            }
+        });
+
+        DeviceFarmApi api = new DeviceFarmApiImpl();
+        api.connectApiServer(logger(), String.format("http://%s:%d", HOST, PORT), "", "Job#1", 2, DEFAULT_CONNECT_TIMEOUT);
+        RemoteDevice first = api.waitApiResponse(logger(), 7000, 5000);
+        RemoteDevice second = api.waitApiResponse(logger(), 7000, 5000);
+
+        assertThat(first.port, is(equalTo(DEVICE_PORT)));
+        assertThat(second.port, is(equalTo(DEVICE_PORT + 1)));
+        api.disconnect();
+        waitDisconnect();
+    }
+
     @Test
     public void testResponseTimeoutException() throws Exception, FailedToConnectApiServerException, MalformedResponseException, NoDeviceAvailableException {
         DeviceFarmApi api = connect(String.format("http://%s:%d", HOST, PORT), DEFAULT_CONNECT_TIMEOUT);
@@ -131,8 +169,26 @@ public class DeviceFarmApiTest {
         waitDisconnect();
     }
 
+    @Test
+    public void testInterruptedWhileWaiting() throws Exception {
+        DeviceFarmApi api = connect(String.format("http://%s:%d", HOST, PORT), DEFAULT_CONNECT_TIMEOUT);
+
+        // an aborted build is not a timeout to retry after
+        Thread.currentThread().interrupt();
+        try {
+            api.waitApiResponse(logger(), 2000, 1000);
+            fail();
+        } catch (InterruptedException e) {
+        } finally {
+            Thread.interrupted();
+        }
+
+        api.disconnect();
+        waitDisconnect();
+    }
+
     @Ignore
-    public void testConnectionFailedTimeoutException() throws FailedToConnectApiServerException, MalformedResponseException, TimeoutException, NoDeviceAvailableException {
+    public void testConnectionFailedTimeoutException() throws FailedToConnectApiServerException, MalformedResponseException, TimeoutException, NoDeviceAvailableException, InterruptedException {
         DeviceFarmApi api = connect(String.format("http://%s:%d", HOST, INVALID_PORT), 1000);
 
         try {
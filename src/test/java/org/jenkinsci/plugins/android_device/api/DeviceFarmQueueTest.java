@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import org.jenkinsci.plugins.android_device.RemoteDevice;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DeviceFarmQueueTest {
+    public static final int CONNECT_TIMEOUT = 1000;
+    private static int PORT = 10367;
+    private FakeDeviceFarm farm;
+    private final List<DeviceFarmApi> apis = new ArrayList<DeviceFarmApi>();
+
+    @Before
+    public void setUp() throws Exception {
+        farm = new FakeDeviceFarm(PORT, 1);
+        farm.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (DeviceFarmApi api : apis) {
+            api.disconnect();
+        }
+        farm.stop();
+        PORT += 10;
+    }
+
+    private PrintStream logger() {
+        return new PrintStream(new ByteArrayOutputStream());
+    }
+
+    private DeviceFarmApi connect(String jobId, boolean queued, int priority) throws Exception, FailedToConnectApiServerException {
+        DeviceFarmApi api = new DeviceFarmApiImpl();
+        api.connectApiServer(logger(), "http://localhost:" + PORT,
+                new ReservationRequest("", jobId, 1, queued, priority, 600), CONNECT_TIMEOUT);
+        apis.add(api);
+        return api;
+    }
+
+    private DeviceFarmApi connectExcluding(String jobId, boolean queued, String excluded) throws Exception, FailedToConnectApiServerException {
+        DeviceFarmApi api = new DeviceFarmApiImpl();
+        api.connectApiServer(logger(), "http://localhost:" + PORT,
+                new ReservationRequest("", jobId, 1, queued, 0, 600, Collections.singletonList(excluded)), CONNECT_TIMEOUT);
+        apis.add(api);
+        return api;
+    }
+
+    private void waitQueueLength(int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (farm.queueLength() != length && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(farm.queueLength(), is(length));
+    }
+
+    private void waitQueuePosition(DeviceFarmApi api, int position) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (api.getQueuePosition() != position && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(api.getQueuePosition(), is(position));
+    }
+
+    @Test
+    public void testNotQueuedGetsNoDevice() throws Exception, FailedToConnectApiServerException, MalformedResponseException {
+        DeviceFarmApi holder = connect("Job#1", false, 0);
+        holder.waitApiResponse(logger(), 5000, 1000);
+
+        DeviceFarmApi other = connect("Job#2", false, 0);
+        try {
+            other.waitApiResponse(logger(), 5000, 1000);
+            fail();
+        } catch (NoDeviceAvailableException e) {
+        }
+    }
+
+    @Test
+    public void testQueuedGetsDeviceOnRelease() throws Exception, FailedToConnectApiServerException, MalformedResponseException, NoDeviceAvailableException {
+        DeviceFarmApi holder = connect("Job#1", false, 0);
+        RemoteDevice held = holder.waitApiResponse(logger(), 5000, 1000);
+
+        DeviceFarmApi waiter = connect("Job#2", true, 0);
+        waitQueuePosition(waiter, 0);
+        assertThat(waiter.getEstimatedWaitSeconds(), is(FakeDeviceFarm.AVERAGE_LEASE_SECONDS));
+
+        holder.disconnect();
+        RemoteDevice device = waiter.waitApiResponse(logger(), 5000, 1000);
+        assertThat(device.port, is(equalTo(held.port)));
+    }
+
+    @Test
+    public void testNewRequestForgetsQueueEstimate() throws Exception {
+        DeviceFarmApi holder = connect("Job#1", false, 0);
+        holder.waitApiResponse(logger(), 5000, 1000);
+
+        DeviceFarmApi waiter = connect("Job#2", true, 0);
+        waitQueuePosition(waiter, 0);
+
+        waiter.connectApiServer(logger(), "http://localhost:" + PORT, new ReservationRequest("", "Job#2", 1), CONNECT_TIMEOUT);
+        assertThat(waiter.getQueuePosition(), is(-1));
+        assertThat(waiter.getEstimatedWaitSeconds(), is(-1));
+    }
+
+    @Test
+    public void testHigherPriorityServedFirst() throws Exception, FailedToConnectApiServerException, MalformedResponseException, NoDeviceAvailableException {
+        DeviceFarmApi holder = connect("Job#1", false, 0);
+        holder.waitApiResponse(logger(), 5000, 1000);
+
+        DeviceFarmApi low = connect("Job#2", true, 0);
+        waitQueueLength(1);
+        DeviceFarmApi high = connect("Job#3", true, 10);
+        waitQueueLength(2);
+        waitQueuePosition(high, 0);
+        waitQueuePosition(low, 1);
+
+        holder.disconnect();
+        high.waitApiResponse(logger(), 5000, 1000);
+        try {
+            low.waitApiResponse(logger(), 500, 100);
+            fail();
+        } catch (TimeoutException e) {
+        }
+        waitQueuePosition(low, 0);
+    }
+
+    @Test
+    public void testExcludedDeviceNotGiven() throws Exception, FailedToConnectApiServerException, MalformedResponseException, NoDeviceAvailableException {
+        String onlyDevice = FakeDeviceFarm.DEVICE_HOST + ":" + FakeDeviceFarm.FIRST_DEVICE_PORT;
+        DeviceFarmApi excluding = connectExcluding("Job#1", false, onlyDevice);
+        try {
+            excluding.waitApiResponse(logger(), 5000, 1000);
+            fail();
+        } catch (NoDeviceAvailableException e) {
+        }
+
+        // a queued request excluding the device does not get it on release either
+        DeviceFarmApi holder = connect("Job#2", false, 0);
+        holder.waitApiResponse(logger(), 5000, 1000);
+        DeviceFarmApi waiter = connectExcluding("Job#3", true, onlyDevice);
+        waitQueueLength(1);
+        holder.disconnect();
+        try {
+            waiter.waitApiResponse(logger(), 500, 100);
+            fail();
+        } catch (TimeoutException e) {
+        }
+        connect("Job#4", false, 0).waitApiResponse(logger(), 5000, 1000);
+    }
+}
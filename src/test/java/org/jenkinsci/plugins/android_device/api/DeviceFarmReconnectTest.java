@@ -0,0 +1,190 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import org.jenkinsci.plugins.android_device.RemoteDevice;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Kills and restarts the farm under running reservations.
+ */
+public class DeviceFarmReconnectTest {
+    public static final int CONNECT_TIMEOUT = 1000;
+    private static final int RECONNECT_WAIT_MS = 15000;
+    private static int PORT = 10967;
+    private FakeDeviceFarm farm;
+    private final List<DeviceFarmApi> apis = new ArrayList<DeviceFarmApi>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (DeviceFarmApi api : apis) {
+            api.disconnect();
+        }
+        DeviceFarmSession.close(url());
+        farm.stop();
+        PORT += 10;
+    }
+
+    private void startFarm(int deviceCount) {
+        farm = new FakeDeviceFarm(PORT, deviceCount);
+        farm.start();
+    }
+
+    private void restartFarm(int deviceCount) {
+        farm.stop();
+        startFarm(deviceCount);
+    }
+
+    private String url() {
+        return "http://localhost:" + PORT;
+    }
+
+    private PrintStream logger() {
+        return new PrintStream(new ByteArrayOutputStream());
+    }
+
+    private DeviceFarmApi reserve(DeviceFarmApi api, String jobId, boolean queued) throws Exception {
+        api.connectApiServer(logger(), url(), new ReservationRequest("", jobId, 1, queued, 0, 600), CONNECT_TIMEOUT);
+        apis.add(api);
+        return api;
+    }
+
+    private void waitConnected(DeviceFarmApi api, boolean connected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RECONNECT_WAIT_MS;
+        while (api.isConnected() != connected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(api.isConnected(), is(connected));
+    }
+
+    private void waitReassertions(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + RECONNECT_WAIT_MS;
+        while (farm.reassertions() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(farm.reassertions(), is(count));
+    }
+
+    private void assertDeviceTaken() throws Exception {
+        DeviceFarmApi other = reserve(new DeviceFarmApiImpl(), "Job#other", false);
+        try {
+            other.waitApiResponse(logger(), 5000, 1000);
+            fail();
+        } catch (NoDeviceAvailableException e) {
+        }
+    }
+
+    @Test
+    public void testDeviceReassertedAfterRestart() throws Exception {
+        startFarm(1);
+        DeviceFarmApi api = reserve(new DeviceFarmApiImpl(), "Job#1", false);
+        api.waitApiResponse(logger(), 5000, 1000);
+
+        restartFarm(1);
+        waitReassertions(1);
+        waitConnected(api, true);
+
+        // the restarted farm gave the only device back to the build instead of to the next one asking
+        assertDeviceTaken();
+    }
+
+    @Test
+    public void testDeviceGivenAwayWhileDisconnected() throws Exception {
+        startFarm(1);
+        DeviceFarmApi api = reserve(new DeviceFarmApiImpl(), "Job#1", false);
+        api.waitApiResponse(logger(), 5000, 1000);
+
+        // the device is no longer free when the farm comes back
+        restartFarm(0);
+        waitReassertions(1);
+        waitConnected(api, false);
+    }
+
+    @Test
+    public void testWaitingRequestSentAgainAfterRestart() throws Exception {
+        startFarm(1);
+        DeviceFarmApi holder = reserve(new DeviceFarmApiImpl(), "Job#1", false);
+        holder.waitApiResponse(logger(), 5000, 1000);
+        DeviceFarmApi waiter = reserve(new DeviceFarmApiImpl(), "Job#2", true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (farm.queueLength() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        // room for both, whichever gets back first
+        restartFarm(2);
+        RemoteDevice device = waiter.waitApiResponse(logger(), RECONNECT_WAIT_MS, 1000);
+        assertThat(device.ip, is(FakeDeviceFarm.DEVICE_HOST));
+        waitReassertions(1);
+    }
+
+    @Test
+    public void testSharedSessionReassertsAfterRestart() throws Exception {
+        startFarm(1);
+        DeviceFarmApi api = reserve(new SharedDeviceFarmApi(), "Job#1", false);
+        api.waitApiResponse(logger(), 5000, 1000);
+
+        restartFarm(1);
+        waitReassertions(1);
+        waitConnected(api, true);
+        assertDeviceTaken();
+    }
+
+    @Test
+    public void testReassertionUnknownToFarm() throws Exception {
+        startFarm(2);
+        DeviceFarmApi api = reserve(new DeviceFarmApiImpl(), "Job#1", false);
+        api.waitApiResponse(logger(), 5000, 1000);
+
+        farm.stop();
+        farm = new FakeDeviceFarm(PORT, 2);
+        farm.ignoreReassertions();
+        farm.start();
+
+        // the device offered instead of the re-asserted one is given back, and the build learns it lost its device
+        long deadline = System.currentTimeMillis() + RECONNECT_WAIT_MS;
+        while (!(api.isLost() && farm.freeDeviceCount() == 2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(api.isLost(), is(true));
+        assertThat(api.isConnected(), is(false));
+        assertThat(farm.freeDeviceCount(), is(2));
+    }
+
+    @Test
+    public void testHeartbeat() throws Exception {
+        startFarm(1);
+        DeviceFarmApi api = reserve(new DeviceFarmApiImpl(100), "Job#1", false);
+        api.waitApiResponse(logger(), 5000, 1000);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (farm.heartbeats() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(farm.heartbeats(), is(greaterThan(1)));
+    }
+
+    @Test
+    public void testReusedApiKeepsOneHeartbeat() throws Exception {
+        startFarm(2);
+        DeviceFarmApi api = new DeviceFarmApiImpl(100);
+        reserve(api, "Job#1", false).waitApiResponse(logger(), 5000, 1000);
+        reserve(api, "Job#2", false).waitApiResponse(logger(), 5000, 1000);
+        api.disconnect();
+
+        // the schedule of the first reservation did not outlive it
+        Thread.sleep(300);
+        int heartbeats = farm.heartbeats();
+        Thread.sleep(500);
+        assertThat(farm.heartbeats(), is(heartbeats));
+    }
+}
@@ -0,0 +1,200 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import org.jenkinsci.plugins.android_device.RemoteDevice;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class DeviceFarmSessionTest {
+    public static final int CONNECT_TIMEOUT = 1000;
+    private static int PORT = 10667;
+    private FakeDeviceFarm farm;
+    private final List<DeviceFarmApi> apis = new ArrayList<DeviceFarmApi>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (DeviceFarmApi api : apis) {
+            api.disconnect();
+        }
+        DeviceFarmSession.close(url());
+        farm.stop();
+        PORT += 10;
+    }
+
+    private void startFarm(int deviceCount) {
+        farm = new FakeDeviceFarm(PORT, deviceCount);
+        farm.start();
+    }
+
+    private String url() {
+        return "http://localhost:" + PORT;
+    }
+
+    private PrintStream logger() {
+        return new PrintStream(new ByteArrayOutputStream());
+    }
+
+    private DeviceFarmApi reserve(String jobId, boolean queued) throws Exception {
+        DeviceFarmApi api = new SharedDeviceFarmApi();
+        api.connectApiServer(logger(), url(), new ReservationRequest("", jobId, 1, queued, 0, 600), CONNECT_TIMEOUT);
+        apis.add(api);
+        return api;
+    }
+
+    @Test
+    public void testBuildsShareOneConnection() throws Exception {
+        startFarm(2);
+        DeviceFarmApi first = reserve("Job#1", false);
+        // the same id twice still makes two reservations
+        DeviceFarmApi second = reserve("Job#1", false);
+
+        RemoteDevice firstDevice = first.waitApiResponse(logger(), 5000, 1000);
+        RemoteDevice secondDevice = second.waitApiResponse(logger(), 5000, 1000);
+
+        assertThat(firstDevice.port, is(not(equalTo(secondDevice.port))));
+        assertThat(first.isConnected(), is(true));
+        assertThat(second.isConnected(), is(true));
+        assertThat(farm.connections(), is(1));
+    }
+
+    @Test
+    public void testRepliesGoToTheirReservation() throws Exception {
+        startFarm(1);
+        DeviceFarmApi holder = reserve("Job#1", false);
+        holder.waitApiResponse(logger(), 5000, 1000);
+
+        DeviceFarmApi other = reserve("Job#2", false);
+        try {
+            other.waitApiResponse(logger(), 5000, 1000);
+            fail();
+        } catch (NoDeviceAvailableException e) {
+        }
+        assertThat(holder.isConnected(), is(true));
+    }
+
+    @Test
+    public void testReleasesAreBatched() throws Exception {
+        startFarm(2);
+        DeviceFarmApi first = reserve("Job#1", false);
+        DeviceFarmApi second = reserve("Job#2", false);
+        first.waitApiResponse(logger(), 5000, 1000);
+        second.waitApiResponse(logger(), 5000, 1000);
+
+        DeviceFarmApi waiter = reserve("Job#3", true);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (farm.queueLength() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        first.disconnect();
+        second.disconnect();
+        waiter.waitApiResponse(logger(), 5000, 1000);
+
+        assertThat(farm.releaseMessages(), is(1));
+        assertThat(farm.connections(), is(1));
+    }
+
+    @Test
+    public void testSessionClosedOnceIdle() throws Exception {
+        startFarm(2);
+        DeviceFarmApi holder = reserve("Job#1", false);
+        holder.waitApiResponse(logger(), 5000, 1000);
+
+        // a build still holding its devices keeps the session
+        SharedDeviceFarmApi.closeSessionWhenIdle(url());
+        assertThat(holder.isConnected(), is(true));
+
+        holder.disconnect();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (farm.releaseMessages() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(farm.releaseMessages(), is(1));
+
+        // once given back, the next build connects again
+        reserve("Job#2", false).waitApiResponse(logger(), 5000, 1000);
+        assertThat(farm.connections(), is(2));
+    }
+
+    @Test
+    public void testSessionUsedAgainIsKept() throws Exception {
+        startFarm(2);
+        DeviceFarmApi first = reserve("Job#1", false);
+        first.waitApiResponse(logger(), 5000, 1000);
+        SharedDeviceFarmApi.closeSessionWhenIdle(url());
+
+        // a build with its own url pointing at the same farm still wants the session
+        DeviceFarmApi second = reserve("Job#2", false);
+        second.waitApiResponse(logger(), 5000, 1000);
+        first.disconnect();
+        Thread.sleep(DeviceFarmSession.RELEASE_BATCH_MS * 3);
+
+        assertThat(second.isConnected(), is(true));
+        assertThat(farm.connections(), is(1));
+    }
+
+    @Test
+    public void testSubscriberCalledWithoutSessionLock() throws Exception {
+        startFarm(1);
+        final DeviceFarmSession session = DeviceFarmSession.get(url(), CONNECT_TIMEOUT);
+        final CountDownLatch requested = new CountDownLatch(1);
+        final boolean[] unlocked = new boolean[1];
+        session.reserve(new ReservationRequest("", "Job#1", 1, false, 0, 600), new DeviceFarmSession.Subscriber() {
+            public List<String> requests(ReservationRequest request) {
+                return Collections.emptyList();
+            }
+
+            public void onRequested() {
+                // another build using the session meanwhile must not wait for this callback
+                Thread other = new Thread() {
+                    @Override
+                    public void run() {
+                        session.isConnected();
+                        unlocked[0] = true;
+                    }
+                };
+                other.start();
+                try {
+                    other.join(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                requested.countDown();
+            }
+
+            public void onReconnected() {
+            }
+
+            public void onDisconnected() {
+            }
+
+            public void onConnectFailed() {
+            }
+
+            public void onDevice(String value) {
+            }
+
+            public void onQueue(String value) {
+            }
+
+            public void onNoDevice(String value) {
+            }
+        });
+
+        assertThat(requested.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(unlocked[0], is(true));
+    }
+}
@@ -0,0 +1,297 @@
+package org.jenkinsci.plugins.android_device.api;
+
+import com.corundumstudio.socketio.AckRequest;
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.listener.ConnectListener;
+import com.corundumstudio.socketio.listener.DataListener;
+import com.corundumstudio.socketio.listener.DisconnectListener;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.util.*;
+
+/**
+ * Socket.io stand-in for the device farm with a fixed number of devices.
+ * Requests beyond that are answered with <tt>svc_nodevice</tt>, or queued by priority when they ask for it.
+ * Replies echo the request id, and a <tt>jen_out</tt> listing ids releases only those reservations of the connection.
+ * A device re-asserted after reconnecting is given back to its reservation if it is still free,
+ * and devices a request excludes are not given to it.
+ */
+public class FakeDeviceFarm {
+    public static final String DEVICE_HOST = "10.20.30.40";
+    static final int FIRST_DEVICE_PORT = 5555;
+    static final int AVERAGE_LEASE_SECONDS = 60;
+
+    private final SocketIOServer server;
+    private final LinkedList<Integer> freeDevices = new LinkedList<Integer>();
+    private final List<Waiter> queue = new ArrayList<Waiter>();
+    private final Map<String, List<Integer>> leases = new HashMap<String, List<Integer>>();
+    private int connections;
+    private int releaseMessages;
+    private int reassertions;
+    private int heartbeats;
+    private boolean reassertKnown = true;
+
+    private static class Waiter {
+        final SocketIOClient client;
+        final String id;
+        final int priority;
+        final long arrival;
+        final Set<Integer> excluded;
+
+        Waiter(SocketIOClient client, String id, int priority, long arrival, Set<Integer> excluded) {
+            this.client = client;
+            this.id = id;
+            this.priority = priority;
+            this.arrival = arrival;
+            this.excluded = excluded;
+        }
+    }
+
+    public FakeDeviceFarm(int port, int deviceCount) {
+        for (int i = 0; i < deviceCount; i++) {
+            freeDevices.add(FIRST_DEVICE_PORT + i);
+        }
+
+        Configuration config = new Configuration();
+        config.setHostname("localhost");
+        config.setPort(port);
+        // restarted on the same port while clients try to reconnect
+        config.getSocketConfig().setReuseAddress(true);
+        server = new SocketIOServer(config);
+
+        server.addEventListener(DeviceFarmApi.KEY_JEN_DEVICE, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient client, String jenDevice, AckRequest ackRequest) throws Exception {
+                reserve(client, JSONObject.fromObject(jenDevice));
+            }
+        });
+        server.addEventListener(DeviceFarmApi.KEY_JEN_OUT, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient client, String outData, AckRequest ackRequest) throws Exception {
+                releaseMessage();
+                release(client, releasedIds(outData));
+            }
+        });
+        server.addEventListener(DeviceFarmApi.KEY_JEN_HEARTBEAT, String.class, new DataListener<String>() {
+            public void onData(SocketIOClient client, String ids, AckRequest ackRequest) throws Exception {
+                heartbeat();
+            }
+        });
+        server.addConnectListener(new ConnectListener() {
+            public void onConnect(SocketIOClient client) {
+                connected();
+            }
+        });
+        server.addDisconnectListener(new DisconnectListener() {
+            public void onDisconnect(SocketIOClient client) {
+                release(client, null);
+            }
+        });
+    }
+
+    /**
+     * Makes the farm behave like one which does not know about re-asserting, taking re-assertions for new requests.
+     */
+    void ignoreReassertions() {
+        reassertKnown = false;
+    }
+
+    synchronized int freeDeviceCount() {
+        return freeDevices.size();
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop();
+    }
+
+    public synchronized int queueLength() {
+        return queue.size();
+    }
+
+    /**
+     * @return How many connections were made to the farm so far.
+     */
+    synchronized int connections() {
+        return connections;
+    }
+
+    /**
+     * @return How many <tt>jen_out</tt> messages the farm got so far.
+     */
+    public synchronized int releaseMessages() {
+        return releaseMessages;
+    }
+
+    /**
+     * @return How many devices were re-asserted so far, whether they could be given back or not.
+     */
+    synchronized int reassertions() {
+        return reassertions;
+    }
+
+    synchronized int heartbeats() {
+        return heartbeats;
+    }
+
+    private synchronized void connected() {
+        connections++;
+    }
+
+    private synchronized void releaseMessage() {
+        releaseMessages++;
+    }
+
+    private synchronized void heartbeat() {
+        heartbeats++;
+    }
+
+    /**
+     * @return The ids listed by a <tt>jen_out</tt>, or {@code null} if it releases the whole connection.
+     */
+    private Set<String> releasedIds(String outData) {
+        try {
+            JSONArray ids = JSONObject.fromObject(outData).getJSONArray(DeviceFarmApi.KEY_IDS);
+            Set<String> released = new HashSet<String>();
+            for (int i = 0; i < ids.size(); i++) {
+                released.add(ids.getString(i));
+            }
+            return released;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The ports of the excluded devices of this farm.
+     */
+    private static Set<Integer> excludedPorts(JSONObject request) {
+        Set<Integer> excluded = new HashSet<Integer>();
+        JSONArray devices = request.optJSONArray(DeviceFarmApi.KEY_EXCLUDE);
+        for (int i = 0; devices != null && i < devices.size(); i++) {
+            String device = devices.getString(i);
+            if (device.startsWith(DEVICE_HOST + ":")) {
+                excluded.add(Integer.valueOf(device.substring(DEVICE_HOST.length() + 1)));
+            }
+        }
+        return excluded;
+    }
+
+    /**
+     * @return The first free device not excluded, or {@code null} if there is none.
+     */
+    private Integer takeFreeDevice(Set<Integer> excluded) {
+        for (Iterator<Integer> it = freeDevices.iterator(); it.hasNext(); ) {
+            Integer devicePort = it.next();
+            if (!excluded.contains(devicePort)) {
+                it.remove();
+                return devicePort;
+            }
+        }
+        return null;
+    }
+
+    private static String leaseKey(SocketIOClient client, String id) {
+        return client.getSessionId() + "|" + id;
+    }
+
+    private synchronized void reserve(SocketIOClient client, JSONObject request) {
+        String id = request.optString(DeviceFarmApi.KEY_ID);
+        Set<Integer> excluded = excludedPorts(request);
+        Integer free;
+        if (reassertKnown && request.optBoolean(DeviceFarmApi.KEY_REASSERT)) {
+            reassertions++;
+            Integer devicePort = request.getInt(DeviceFarmApi.KEY_PORT);
+            JSONObject reply = new JSONObject();
+            reply.put(DeviceFarmApi.KEY_ID, id);
+            reply.put(DeviceFarmApi.KEY_IP, DEVICE_HOST);
+            reply.put(DeviceFarmApi.KEY_PORT, devicePort);
+            reply.put(DeviceFarmApi.KEY_REASSERT, true);
+            if (freeDevices.remove(devicePort)) {
+                addLease(client, id, devicePort);
+                client.sendEvent(DeviceFarmApi.KEY_SVC_DEVICE, reply.toString());
+            } else {
+                client.sendEvent(DeviceFarmApi.KEY_SVC_NODEVICE, reply.toString());
+            }
+        } else if ((free = takeFreeDevice(excluded)) != null) {
+            lease(client, id, free);
+        } else if (request.optBoolean(DeviceFarmApi.KEY_QUEUE)) {
+            queue.add(new Waiter(client, id, request.optInt(DeviceFarmApi.KEY_PRIORITY), System.nanoTime(), excluded));
+            sortAndNotifyQueue();
+        } else {
+            JSONObject reply = new JSONObject();
+            reply.put(DeviceFarmApi.KEY_ID, id);
+            client.sendEvent(DeviceFarmApi.KEY_SVC_NODEVICE, reply.toString());
+        }
+    }
+
+    /**
+     * @param ids The reservations of the connection to release, or {@code null} for all of them.
+     */
+    private synchronized void release(SocketIOClient client, Set<String> ids) {
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); ) {
+            Waiter waiter = it.next();
+            if (waiter.client.getSessionId().equals(client.getSessionId()) && (ids == null || ids.contains(waiter.id))) {
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<String, List<Integer>>> it = leases.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, List<Integer>> lease = it.next();
+            String key = lease.getKey();
+            if (!key.startsWith(client.getSessionId() + "|")) {
+                continue;
+            }
+            if (ids == null || ids.contains(key.substring(key.indexOf('|') + 1))) {
+                freeDevices.addAll(lease.getValue());
+                it.remove();
+            }
+        }
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext() && !freeDevices.isEmpty(); ) {
+            Waiter waiter = it.next();
+            Integer free = takeFreeDevice(waiter.excluded);
+            if (free != null) {
+                it.remove();
+                lease(waiter.client, waiter.id, free);
+            }
+        }
+        sortAndNotifyQueue();
+    }
+
+    private void lease(SocketIOClient client, String id, int devicePort) {
+        addLease(client, id, devicePort);
+        client.sendEvent(DeviceFarmApi.KEY_SVC_DEVICE,
+                "{\"ip\":\"" + DEVICE_HOST + "\",\"port\":\"" + devicePort + "\",\"tag\":\"FAKE\",\"id\":\"" + id + "\"}");
+    }
+
+    private void addLease(SocketIOClient client, String id, int devicePort) {
+        List<Integer> leased = leases.get(leaseKey(client, id));
+        if (leased == null) {
+            leased = new ArrayList<Integer>();
+            leases.put(leaseKey(client, id), leased);
+        }
+        leased.add(devicePort);
+    }
+
+    private void sortAndNotifyQueue() {
+        Collections.sort(queue, new Comparator<Waiter>() {
+            public int compare(Waiter a, Waiter b) {
+                if (a.priority != b.priority) {
+                    return a.priority > b.priority ? -1 : 1;
+                }
+                return a.arrival < b.arrival ? -1 : (a.arrival == b.arrival ? 0 : 1);
+            }
+        });
+        for (int position = 0; position < queue.size(); position++) {
+            JSONObject status = new JSONObject();
+            status.put(DeviceFarmApi.KEY_POSITION, position);
+            status.put(DeviceFarmApi.KEY_ESTIMATED_WAIT, (position + 1) * AVERAGE_LEASE_SECONDS);
+            status.put(DeviceFarmApi.KEY_ID, queue.get(position).id);
+            queue.get(position).client.sendEvent(DeviceFarmApi.KEY_SVC_QUEUE, status.toString());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.jenkinsci.plugins.android_device.sdk;
+
+import org.jenkinsci.plugins.android_device.util.Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class SdkDescriptorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testToolDirResolvedFromNodeIndex() throws Exception {
+        File buildTools = new File(folder.getRoot(), "build-tools");
+        assertThat(new File(buildTools, "19.1.0").mkdirs(), is(true));
+        assertThat(new File(buildTools, "19.1.0" + File.separator + Tool.AAPT.getExecutable(Utils.isUnix())).createNewFile(), is(true));
+
+        SdkDescriptor descriptor = new SdkDescriptor(folder.getRoot().getPath(), null, SdkIndex.scan(folder.getRoot().getPath()));
+        AndroidSdk sdk = new AndroidSdk(descriptor);
+        assertThat(sdk.findToolDir(Tool.AAPT), containsString("19.1.0"));
+
+        // the controller does not look at the node's disk again, the index is renewed when the node reconnects
+        assertThat(new File(buildTools, "19.1.0").renameTo(new File(buildTools, "21.0.0")), is(true));
+        assertThat(sdk.findToolDir(Tool.AAPT), containsString("19.1.0"));
+    }
+
+    @Test
+    public void testCacheInvalidatedPerNode() {
+        SdkDescriptor descriptor = new SdkDescriptor("/devel/android-sdk", null, null);
+        SdkDescriptorCache.get().put("node-a", "${ANDROID_HOME}", descriptor);
+        SdkDescriptorCache.get().put("node-b", "${ANDROID_HOME}", descriptor);
+
+        SdkDescriptorCache.get().invalidate("node-a");
+
+        assertThat(SdkDescriptorCache.get().get("node-a", "${ANDROID_HOME}"), nullValue());
+        assertThat(SdkDescriptorCache.get().get("node-b", "${ANDROID_HOME}"), sameInstance(descriptor));
+    }
+}
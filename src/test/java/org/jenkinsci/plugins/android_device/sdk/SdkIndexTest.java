@@ -0,0 +1,77 @@
+package org.jenkinsci.plugins.android_device.sdk;
+
+import org.jenkinsci.plugins.android_device.SdkInstallationException;
+import org.jenkinsci.plugins.android_device.util.Utils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class SdkIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final String aapt = Tool.AAPT.getExecutable(Utils.isUnix());
+
+    private File buildTools(String dirName, String revision, boolean withAapt) throws IOException {
+        File dir = new File(folder.getRoot(), "build-tools" + File.separator + dirName);
+        dir.mkdirs();
+        if (revision != null) {
+            FileWriter writer = new FileWriter(new File(dir, SdkIndex.SOURCE_PROPERTIES));
+            try {
+                writer.write(SdkIndex.PKG_REVISION + "=" + revision + "\n");
+            } finally {
+                writer.close();
+            }
+        }
+        if (withAapt) {
+            new File(dir, aapt).createNewFile();
+        }
+        return dir;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        buildTools("19.1.0", "19.1.0", true);
+        buildTools("android-4.4W", "20.0.0", true);
+        buildTools("21.1.2", null, true);
+        buildTools("22.0.0-rc1", "22.0.0 rc1", true);
+        buildTools("23.0.0", "23.0.0", false);
+    }
+
+    @Test
+    public void testOrderedByRevision() {
+        SdkIndex index = SdkIndex.scan(folder.getRoot().getPath());
+
+        assertThat(index.getBuildTools().size(), is(5));
+        assertThat(index.getBuildTools().get(0).revision, is("23.0.0"));
+        assertThat(index.getBuildTools().get(1).revision, is("22.0.0 rc1"));
+        assertThat(index.getBuildTools().get(4).revision, is("19.1.0"));
+    }
+
+    @Test
+    public void testNewestWithExecutable() throws Exception {
+        SdkIndex index = SdkIndex.scan(folder.getRoot().getPath());
+
+        assertThat(index.findBuildTools(null, aapt).dirName, is("22.0.0-rc1"));
+    }
+
+    @Test
+    public void testPinnedRevision() throws Exception {
+        SdkIndex index = SdkIndex.scan(folder.getRoot().getPath());
+
+        assertThat(index.findBuildTools("20.0", aapt).dirName, is("android-4.4W"));
+    }
+
+    @Test(expected = SdkInstallationException.class)
+    public void testPinnedRevisionWithoutExecutable() throws Exception {
+        SdkIndex.scan(folder.getRoot().getPath()).findBuildTools("23.0.0", aapt);
+    }
+}
@@ -0,0 +1,46 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ActivityOutputStreamTest {
+
+    @Test
+    public void testQuietStreamReturnsRightAway() throws Exception {
+        ActivityOutputStream stream = new ActivityOutputStream(new ByteArrayOutputStream());
+        Thread.sleep(60);
+
+        long start = System.currentTimeMillis();
+        assertThat(stream.awaitQuiet(50, 5000), is(true));
+        assertThat(System.currentTimeMillis() - start, lessThan(50L));
+    }
+
+    @Test
+    public void testBusyStreamBoundedByTimeout() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ActivityOutputStream stream = new ActivityOutputStream(out);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        stream.write("line\n".getBytes(), 0, 5);
+                        Thread.sleep(10);
+                    }
+                } catch (Exception ignore) {
+                }
+            }
+        };
+        writer.start();
+
+        long start = System.currentTimeMillis();
+        assertThat(stream.awaitQuiet(200, 300), is(false));
+        assertThat(System.currentTimeMillis() - start, lessThan(1000L));
+        writer.join();
+        assertThat(out.size(), is(500));
+    }
+}
@@ -0,0 +1,48 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ImageScalerTest {
+
+    private static byte[] png(int width, int height) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testScaleDownKeepsAspectRatio() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageScaler.scaleDown(png(2560, 1600), 640, out);
+
+        BufferedImage scaled = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertThat(scaled.getWidth(), is(640));
+        assertThat(scaled.getHeight(), is(400));
+    }
+
+    @Test
+    public void testNarrowImageUnchanged() throws Exception {
+        byte[] image = png(320, 480);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageScaler.scaleDown(image, 640, out);
+
+        assertThat(out.toByteArray(), is(image));
+    }
+
+    @Test
+    public void testUndecodableDataUnchanged() throws Exception {
+        byte[] data = "error: device offline".getBytes("UTF-8");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageScaler.scaleDown(data, 640, out);
+
+        assertThat(out.toByteArray(), is(data));
+    }
+}
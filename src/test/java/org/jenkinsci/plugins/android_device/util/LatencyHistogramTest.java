@@ -0,0 +1,42 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getCount(), is(0L));
+        assertThat(histogram.getPercentile(0.99), is(0L));
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        for (long value : new long[]{0, 1, 7, 8, 15, 16, 17, 1000, 65535, 65536, 3600000, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertThat(LatencyHistogram.upperBoundOf(bucket), greaterThanOrEqualTo(value));
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBoundOf(bucket - 1), lessThan(value));
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertThat(histogram.getCount(), is(1000L));
+        assertThat(histogram.getMean(), is(500L));
+        assertThat(histogram.getMax(), is(1000L));
+        assertThat(histogram.getPercentile(0.5), both(greaterThanOrEqualTo(500L)).and(lessThan(500L * 9 / 8)));
+        assertThat(histogram.getPercentile(0.99), both(greaterThanOrEqualTo(990L)).and(lessThanOrEqualTo(1000L)));
+        assertThat(histogram.getPercentile(1), is(1000L));
+    }
+}
@@ -0,0 +1,81 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class LogcatParserTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String LOG = "--------- beginning of /dev/log/main\n"
+            + "01-02 03:04:05.100 D/MyApp( 1234): starting\r\n"
+            + "01-02 03:04:05.200 I/ActivityManager(  567): Start proc com.example\n"
+            + "01-02 03:04:05.300 E/AndroidRuntime( 1234): FATAL EXCEPTION: main\n"
+            + "01-02 03:04:05.301 E/AndroidRuntime( 1234): java.lang.NullPointerException\n"
+            + "01-02 03:04:05.302 W/Other(  890): unrelated\n"
+            + "01-02 03:04:05.303 E/AndroidRuntime( 1234): \tat com.example.Main.onCreate(Main.java:10)\n"
+            + "01-02 03:04:06.000 E/ActivityManager(  567): ANR in com.example\n"
+            + "01-02 03:04:06.001 E/ActivityManager(  567): Reason: keyDispatchingTimedOut\n"
+            + "01-02 03:04:07.000 F/DEBUG   (  100): *** *** *** *** *** *** *** *** *** *** *** *** *** *** *** ***\n"
+            + "01-02 03:04:07.001 F/DEBUG   (  100): pid: 1300, tid: 1300, name: native  >>> com.example <<<\n"
+            + "01-02 03:04:08.000 V/MyApp( 1234): tail without newline";
+
+    private String parse(String filter, File crashFile, int chunk) throws Exception {
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        LogcatParser parser = new LogcatParser(archive, filter, crashFile);
+        byte[] bytes = LOG.getBytes("UTF-8");
+        for (int offset = 0; offset < bytes.length; offset += chunk) {
+            parser.write(bytes, offset, Math.min(chunk, bytes.length - offset));
+        }
+        parser.close();
+        return archive.toString("UTF-8");
+    }
+
+    @Test
+    public void testEverythingArchivedWithoutFilter() throws Exception {
+        assertThat(parse(null, new File(folder.getRoot(), "crashes.txt"), 7), is(LOG));
+    }
+
+    @Test
+    public void testFilter() throws Exception {
+        String archived = parse("MyApp:D *:E", new File(folder.getRoot(), "crashes.txt"), 4096);
+
+        assertThat(archived, containsString("beginning of"));
+        assertThat(archived, containsString("D/MyApp( 1234): starting"));
+        assertThat(archived, not(containsString("Start proc")));
+        assertThat(archived, not(containsString("unrelated")));
+        assertThat(archived, containsString("FATAL EXCEPTION"));
+        assertThat(archived, not(containsString("tail without newline")));
+    }
+
+    @Test
+    public void testCrashesExtracted() throws Exception {
+        File crashFile = new File(folder.getRoot(), "crashes.txt");
+        ByteArrayOutputStream archive = new ByteArrayOutputStream();
+        LogcatParser parser = new LogcatParser(archive, "*:S", crashFile);
+        parser.write(LOG.getBytes("UTF-8"));
+        parser.close();
+
+        assertThat(archive.toString("UTF-8"), is("--------- beginning of /dev/log/main\n"));
+        assertThat(parser.getCrashCount(LogcatParser.CrashKind.FATAL_EXCEPTION), is(1));
+        assertThat(parser.getCrashCount(LogcatParser.CrashKind.ANR), is(1));
+        assertThat(parser.getCrashCount(LogcatParser.CrashKind.NATIVE_CRASH), is(1));
+        assertThat(parser.getErrorCounts().get("AndroidRuntime"), is(3));
+
+        String report = FileUtils.readFileToString(crashFile, "UTF-8");
+        assertThat(report, containsString("java.lang.NullPointerException"));
+        assertThat(report, containsString("Main.java:10"));
+        assertThat(report, containsString("keyDispatchingTimedOut"));
+        assertThat(report, containsString(">>> com.example <<<"));
+        assertThat(report, not(containsString("unrelated")));
+        assertThat(report, containsString("AndroidRuntime: 3"));
+    }
+}
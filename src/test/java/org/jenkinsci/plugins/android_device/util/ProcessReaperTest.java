@@ -0,0 +1,114 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import hudson.Proc;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class ProcessReaperTest {
+
+    private final ProcessReaper reaper = new ProcessReaper(2, 4);
+
+    /**
+     * A process which dies once killed, unless it is stubborn.
+     */
+    private Proc process(final boolean stubborn) throws Exception {
+        final AtomicBoolean alive = new AtomicBoolean(true);
+        Proc process = mock(Proc.class);
+        when(process.isAlive()).thenAnswer(new Answer<Boolean>() {
+            public Boolean answer(InvocationOnMock invocation) {
+                return alive.get();
+            }
+        });
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                if (!stubborn) {
+                    alive.set(false);
+                }
+                return null;
+            }
+        }).when(process).kill();
+        when(process.join()).thenReturn(143);
+        return process;
+    }
+
+    @Test
+    public void testExitStatusReported() throws Exception {
+        Proc process = process(false);
+
+        assertThat(reaper.terminate(process, 1000), is(143));
+        verify(process, times(1)).kill();
+    }
+
+    @Test
+    public void testAlreadyExited() throws Exception {
+        Proc process = process(false);
+        process.kill();
+
+        assertThat(reaper.terminate(process, 1000), is(143));
+        verify(process, times(1)).kill();
+    }
+
+    @Test
+    public void testGivesUpOnStubbornProcess() throws Exception {
+        Proc process = process(true);
+
+        long start = System.currentTimeMillis();
+        assertThat(reaper.terminate(process, 200), nullValue());
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+        verify(process, times(2)).kill();
+    }
+
+    @Test
+    public void testHangingKillIsBounded() throws Exception {
+        Proc process = hangingProcess();
+
+        long start = System.currentTimeMillis();
+        assertThat(reaper.terminate(process, 200), nullValue());
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+    }
+
+    @Test
+    public void testSaturatedPoolIsBounded() throws Exception {
+        final ProcessReaper saturated = new ProcessReaper(1, 1);
+        // one hanging kill takes the thread and another one the queue
+        for (int i = 0; i < 2; i++) {
+            final Proc hanging = hangingProcess();
+            Thread background = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        saturated.terminate(hanging, 5000);
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            };
+            background.setDaemon(true);
+            background.start();
+        }
+        Thread.sleep(200);
+
+        Proc process = hangingProcess();
+        long start = System.currentTimeMillis();
+        assertThat(saturated.terminate(process, 200), nullValue());
+        assertThat(System.currentTimeMillis() - start, lessThan(2000L));
+    }
+
+    private Proc hangingProcess() throws Exception {
+        Proc process = mock(Proc.class);
+        when(process.isAlive()).thenReturn(true);
+        doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(60 * 1000);
+                return null;
+            }
+        }).when(process).kill();
+        return process;
+    }
+}
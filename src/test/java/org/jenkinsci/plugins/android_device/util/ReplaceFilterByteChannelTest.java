@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ReplaceFilterByteChannelTest {
+
+    private ReplaceFilterByteChannel channel;
+    private ByteArrayOutputStream stream;
+
+    @Before
+    public void setUp() throws Exception {
+        stream = new ByteArrayOutputStream();
+        channel = new ReplaceFilterByteChannel(Channels.newChannel(stream));
+    }
+
+    @Test
+    public void testCheckReplace() throws Exception {
+
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0xA, 0xD, 0xA, 0xD, 0xA, 0xD, 0xA});
+        assertThat(channel.write(buffer), is(7));
+        assertThat(buffer.hasRemaining(), is(false));
+        channel.close();
+
+        assertThat(stream.toByteArray().length, is(4));
+    }
+
+    @Test
+    public void testCheckReplaceWithMultipleWrite() throws Exception {
+
+        channel.write(ByteBuffer.wrap(new byte[]{0x41, 0xD}));
+        channel.write(ByteBuffer.wrap(new byte[]{0xA, 0x42}));
+        channel.close();
+
+        assertThat(stream.toByteArray(), is(new byte[]{0x41, 0xA, 0x42}));
+    }
+
+    @Test
+    public void testCheckReplaceWithLast0x0D() throws Exception {
+
+        channel.write(ByteBuffer.wrap(new byte[]{0xA, 0xD, 0xA, 0xD}));
+        channel.close();
+
+        assertThat(stream.toByteArray(), is(new byte[]{0xA, 0xA, 0xD}));
+    }
+
+    @Test
+    public void testCheckReplaceWithPngHeader() throws Exception {
+
+        channel.write(ByteBuffer.wrap(new byte[]{
+                (byte) 0x89, 0x50, 0x4e, 0x47,
+                0x0d, 0x0d, 0x0a, 0x1a,
+                0x0d, 0x0a, 0x00, 0x00,
+                0x00, 0x0d, 0x49, 0x48}));
+        channel.close();
+
+        assertThat(stream.toByteArray().length, is(14));
+    }
+}
@@ -104,4 +104,26 @@ public class ReplaceFilterOutputStreamTest {
         assertThat(stream.toByteArray().length, is(14));
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCheckCarriedOver0x0DFollowedBy0x0D() throws Exception {
+
+        filterOutputStream.write(new byte[]{0x41, 0xD});
+        filterOutputStream.write(new byte[]{0xD, 0xA, 0x42});
+        filterOutputStream.flush();
+
+        assertThat(stream.toByteArray(), is(new byte[]{0x41, 0xD, 0xA, 0x42}));
+    }
+
+    @Test
+    public void testCheckReplaceWithSingleByteWrites() throws Exception {
+
+        filterOutputStream.write(0x41);
+        filterOutputStream.write(0xD);
+        filterOutputStream.write(0xA);
+        filterOutputStream.write(0xD);
+        filterOutputStream.flush();
+
+        assertThat(stream.toByteArray(), is(new byte[]{0x41, 0xA, 0xD}));
+    }
+}
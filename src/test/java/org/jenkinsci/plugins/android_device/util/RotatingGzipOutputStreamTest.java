@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.android_device.util;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class RotatingGzipOutputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String read(File file) throws Exception {
+        GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testSingleChunk() throws Exception {
+        RotatingGzipOutputStream stream = new RotatingGzipOutputStream(folder.getRoot(), "logcat.txt", 1024);
+        stream.write("line1\nline2\n".getBytes("UTF-8"));
+        stream.close();
+
+        assertThat(stream.getChunks().size(), is(1));
+        assertThat(stream.getChunks().get(0).getName(), is(equalTo("logcat-000.txt.gz")));
+        assertThat(read(stream.getChunks().get(0)), is(equalTo("line1\nline2\n")));
+    }
+
+    @Test
+    public void testRotatesAtLineBreak() throws Exception {
+        RotatingGzipOutputStream stream = new RotatingGzipOutputStream(folder.getRoot(), "logcat.txt", 4);
+        stream.write("line1\nli".getBytes("UTF-8"));
+        stream.write("ne2\nline3\n".getBytes("UTF-8"));
+        stream.close();
+
+        assertThat(stream.getChunks().size(), is(3));
+        assertThat(read(stream.getChunks().get(0)), is(equalTo("line1\n")));
+        assertThat(read(stream.getChunks().get(1)), is(equalTo("line2\n")));
+        assertThat(read(stream.getChunks().get(2)), is(equalTo("line3\n")));
+        assertThat(stream.getTotalBytes(), is(18L));
+    }
+
+    @Test
+    public void testNoFileWhenEmpty() throws Exception {
+        RotatingGzipOutputStream stream = new RotatingGzipOutputStream(folder.getRoot(), "logcat.txt", 1024);
+        stream.write(new byte[0]);
+        stream.close();
+
+        assertThat(stream.getChunks().size(), is(0));
+        assertThat(folder.getRoot().list().length, is(0));
+    }
+}
@@ -2,9 +2,21 @@ package org.jenkinsci.plugins.android_device.util;
 
 import org.junit.Test;
 
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
 public class UtilsTest {
     @Test
     public void testGetHomeDirectory() throws Exception {
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testCompareRevisions() throws Exception {
+        assertThat(Utils.compareRevisions("21.1.2", "19.1.0"), greaterThan(0));
+        assertThat(Utils.compareRevisions("9.0.0", "19.1.0"), lessThan(0));
+        assertThat(Utils.compareRevisions("20.0", "20.0.0"), is(0));
+        assertThat(Utils.compareRevisions("22.0.0 rc1", "22.0.0"), lessThan(0));
+        assertThat(Utils.compareRevisions("22.0.0 rc1", "21.1.2"), greaterThan(0));
+    }
+}